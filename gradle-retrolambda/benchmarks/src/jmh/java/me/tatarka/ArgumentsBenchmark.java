@@ -0,0 +1,73 @@
+package me.tatarka;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the classpath and included files retrolambda is run with to argument files, both when
+ * the list changed and when an earlier file can be reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArgumentsBenchmark {
+    @Param("100000")
+    int classpathSize;
+
+    @Param("10000")
+    int changeSetSize;
+
+    File tempDir;
+    File argumentsDir;
+    List<File> classpath;
+    List<File> includedFiles;
+
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("arguments").toFile();
+        argumentsDir = new File(tempDir, "args");
+        classpath = new ArrayList<>(classpathSize);
+        for (int i = 0; i < classpathSize; i++) {
+            classpath.add(new File("/home/user/.gradle/caches/modules-2/files-2.1/com.example.group" + i
+                    + "/artifact" + i + "/1.0.0/0123456789abcdef0123456789abcdef01234567/artifact" + i + "-1.0.0.jar"));
+        }
+        RetrolambdaExec.writeArgumentFile(argumentsDir, ".path", classpath);
+
+        includedFiles = new ArrayList<>(changeSetSize);
+        for (int i = 0; i < changeSetSize; i++) {
+            includedFiles.add(new File("/home/user/project/build/retrolambda/main/" + SyntheticClasses.name(i) + ".class"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticClasses.delete(tempDir);
+    }
+
+    @Benchmark
+    public File reuseClasspathFile() throws IOException {
+        return RetrolambdaExec.writeArgumentFile(argumentsDir, ".path", classpath);
+    }
+
+    @Benchmark
+    public long writeIncludedFilesFile() throws IOException {
+        File file = RetrolambdaExec.writeArgumentFile(argumentsDir, ".list", includedFiles);
+        long length = file.length();
+        file.delete();
+        return length;
+    }
+}
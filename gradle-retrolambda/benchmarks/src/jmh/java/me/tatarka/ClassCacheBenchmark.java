@@ -0,0 +1,80 @@
+package me.tatarka;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up a large change set in the class cache: the context key over a large classpath, the
+ * key of each class and checking the entries are there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClassCacheBenchmark {
+    @Param("100000")
+    int classpathSize;
+
+    @Param("10000")
+    int changeSetSize;
+
+    File tempDir;
+    List<Object> context;
+    RetrolambdaClassCache cache;
+    List<File> changed;
+    List<String> keys;
+
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("class-cache").toFile();
+        context = new ArrayList<>();
+        for (int i = 0; i < classpathSize; i++) {
+            context.add(SyntheticClasses.name(i) + ".class");
+        }
+        cache = new RetrolambdaClassCache(new File(tempDir, "cache"), Long.MAX_VALUE, RetrolambdaClassCache.hash(context));
+        changed = SyntheticClasses.writeInputs(new File(tempDir, "in"), changeSetSize);
+        keys = new ArrayList<>(changeSetSize);
+        for (File file : changed) {
+            String key = cache.key(file);
+            cache.store(key, Collections.singletonList(file));
+            keys.add(key);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticClasses.delete(tempDir);
+    }
+
+    @Benchmark
+    public String contextKey() {
+        return RetrolambdaClassCache.hash(context);
+    }
+
+    @Benchmark
+    public void key(Blackhole blackhole) {
+        for (File file : changed) {
+            blackhole.consume(cache.key(file));
+        }
+    }
+
+    @Benchmark
+    public boolean containsAll() {
+        return cache.containsAll(keys);
+    }
+}
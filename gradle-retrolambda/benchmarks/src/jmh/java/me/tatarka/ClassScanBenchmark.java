@@ -0,0 +1,55 @@
+package me.tatarka;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading class files: the prescan that decides which classes retrolambda has to see, and the
+ * full read used for the interface graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClassScanBenchmark {
+    @Param("50000")
+    int classes;
+
+    byte[][] classBytes;
+
+    @Setup
+    public void setup() {
+        classBytes = new byte[classes][];
+        for (int i = 0; i < classes; i++) {
+            classBytes[i] = SyntheticClasses.classBytes(i);
+        }
+    }
+
+    @Benchmark
+    public int needsBackport() {
+        int needed = 0;
+        for (byte[] bytes : classBytes) {
+            if (ClassFileInfo.needsBackport(bytes)) {
+                needed++;
+            }
+        }
+        return needed;
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) throws IOException {
+        for (byte[] bytes : classBytes) {
+            blackhole.consume(ClassFileInfo.read(new ByteArrayInputStream(bytes)));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package me.tatarka;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Working out which classes to run for a large change set when backporting default methods.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InterfaceGraphBenchmark {
+    @Param("50000")
+    int classes;
+
+    @Param("10000")
+    int changeSetSize;
+
+    File tempDir;
+    File inputDir;
+    File graphFile;
+    List<File> changed;
+
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("interface-graph").toFile();
+        inputDir = new File(tempDir, "in");
+        graphFile = new File(tempDir, "interfaces.graph");
+        List<File> inputs = SyntheticClasses.writeInputs(inputDir, classes);
+        InterfaceGraph.scan(inputDir).save(graphFile);
+        changed = LambdaIndexBenchmark.spread(inputs, changeSetSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticClasses.delete(tempDir);
+    }
+
+    @Benchmark
+    public InterfaceGraph scan() {
+        return InterfaceGraph.scan(inputDir);
+    }
+
+    @Benchmark
+    public InterfaceGraph load() {
+        return InterfaceGraph.load(graphFile, inputDir);
+    }
+
+    @Benchmark
+    public Set<File> update(Loaded loaded) {
+        return loaded.graph.update(changed, Collections.<File>emptyList());
+    }
+
+    /**
+     * Updating changes the graph, so each run starts from a freshly loaded one.
+     */
+    @State(Scope.Thread)
+    public static class Loaded {
+        InterfaceGraph graph;
+
+        @Setup(Level.Invocation)
+        public void setup(InterfaceGraphBenchmark benchmark) {
+            graph = InterfaceGraph.load(benchmark.graphFile, benchmark.inputDir);
+        }
+    }
+}
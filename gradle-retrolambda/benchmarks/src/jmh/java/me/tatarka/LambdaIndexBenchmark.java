@@ -0,0 +1,129 @@
+package me.tatarka;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeping track of the lambda classes in a large output dir, and finding the stale ones for a
+ * large change set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LambdaIndexBenchmark {
+    @Param("50000")
+    int classes;
+
+    @Param("10000")
+    int changeSetSize;
+
+    File tempDir;
+    File outputDir;
+    List<File> inputDirs = Collections.emptyList();
+    File indexFile;
+    LambdaIndex index;
+    List<File> changed;
+
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("lambda-index").toFile();
+        outputDir = new File(tempDir, "out");
+        indexFile = new File(tempDir, "lambdas.index");
+        List<File> outputs = SyntheticClasses.writeOutputs(outputDir, classes);
+        index = LambdaIndex.scan(outputDir, inputDirs);
+        index.save(indexFile);
+        changed = spread(outputs, changeSetSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticClasses.delete(tempDir);
+    }
+
+    @Benchmark
+    public LambdaIndex scan() {
+        return LambdaIndex.scan(outputDir, inputDirs);
+    }
+
+    @Benchmark
+    public LambdaIndex load() {
+        return LambdaIndex.load(indexFile, outputDir, inputDirs);
+    }
+
+    @Benchmark
+    public void save() {
+        index.save(indexFile);
+    }
+
+    @Benchmark
+    public Map<File, List<File>> generatedBy() {
+        return LambdaIndex.generatedBy(outputDir, inputDirs, changed);
+    }
+
+    @Benchmark
+    public void update() {
+        index.update(changed);
+    }
+
+    @Benchmark
+    public int deleteGenerated(Copy copy) {
+        int deleted = 0;
+        for (File file : copy.changed) {
+            deleted += copy.index.deleteGenerated(file);
+        }
+        return deleted;
+    }
+
+    /**
+     * A copy of the index to remove entries from. It's moved to a dir that doesn't exist, so the
+     * real files are never deleted.
+     */
+    @State(Scope.Thread)
+    public static class Copy {
+        LambdaIndex index;
+        List<File> changed;
+
+        @Setup(Level.Trial)
+        public void setupChanged(LambdaIndexBenchmark benchmark) {
+            File missingDir = new File(benchmark.tempDir, "missing");
+            changed = new ArrayList<>(benchmark.changed.size());
+            for (File file : benchmark.changed) {
+                changed.add(missingDir.toPath().resolve(benchmark.outputDir.toPath().relativize(file.toPath())).toFile());
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void setupIndex(LambdaIndexBenchmark benchmark) {
+            index = benchmark.index.rebase(new File(benchmark.tempDir, "missing"));
+        }
+    }
+
+    /**
+     * Picks count files spread out evenly, like the classes touched by a large change.
+     */
+    static List<File> spread(List<File> files, int count) {
+        List<File> result = new ArrayList<>(count);
+        int step = Math.max(1, files.size() / count);
+        for (int i = 0; i < files.size() && result.size() < count; i += step) {
+            result.add(files.get(i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,51 @@
+package me.tatarka;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping every input class of a large dir to its output, as is done for each changed, removed
+ * and prescanned class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OutputPathsBenchmark {
+    @Param("50000")
+    int classes;
+
+    RetrolambdaExec exec;
+    List<File> inputs;
+
+    @Setup
+    public void setup() {
+        // Only the dirs are needed to map the files.
+        exec = new RetrolambdaExec(null, Collections.<File>emptyList());
+        exec.setInputDir(new File("/home/user/project/build/retrolambda/main"));
+        exec.setOutputDir(new File("/home/user/project/build/classes/java/main"));
+        inputs = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            inputs.add(new File(exec.getInputDir(), SyntheticClasses.name(i) + ".class"));
+        }
+    }
+
+    @Benchmark
+    public void toOutput(Blackhole blackhole) {
+        for (File input : inputs) {
+            blackhole.consume(exec.toOutput(input));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package me.tatarka;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a tree of java 8 class files shaped like a real project: packages of a few hundred
+ * classes, every 20th an interface with a default method that the next ones implement, and every
+ * 3rd class with a lambda. Outputs can also be generated alongside, with the lambda classes
+ * retrolambda would have saved.
+ */
+final class SyntheticClasses {
+    static final int CLASSES_PER_PACKAGE = 500;
+    static final int INTERFACE_EVERY = 20;
+    static final int LAMBDA_EVERY = 3;
+
+    private static final Handle METAFACTORY = new Handle(Opcodes.H_INVOKESTATIC,
+            "java/lang/invoke/LambdaMetafactory", "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+            false);
+
+    private SyntheticClasses() {
+    }
+
+    /**
+     * Writes count classes to the dir and returns their files, in order.
+     */
+    static List<File> writeInputs(File dir, int count) throws IOException {
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            File file = new File(dir, name(i) + ".class");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), classBytes(i));
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Writes what retrolambda would have output for count classes: the classes themselves and a
+     * lambda class for each that has a lambda. Only the names matter, so the files are empty.
+     */
+    static List<File> writeOutputs(File dir, int count) throws IOException {
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            File file = new File(dir, name(i) + ".class");
+            file.getParentFile().mkdirs();
+            file.createNewFile();
+            if (hasLambda(i)) {
+                new File(dir, name(i) + "$$Lambda$1.class").createNewFile();
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    static String name(int i) {
+        String simpleName = isInterface(i) ? "I" + i : "C" + i;
+        return "com/example/p" + (i / CLASSES_PER_PACKAGE) + "/" + simpleName;
+    }
+
+    static byte[] classBytes(int i) {
+        String name = name(i);
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        if (isInterface(i)) {
+            writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT,
+                    name, null, "java/lang/Object", null);
+            MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "greet", "()V", null, null);
+            method.visitCode();
+            method.visitInsn(Opcodes.RETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+            method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "name", "()Ljava/lang/String;", null, null);
+            method.visitEnd();
+        } else {
+            writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER,
+                    name, null, "java/lang/Object", new String[]{name(i - i % INTERFACE_EVERY)});
+            MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+            method.visitCode();
+            method.visitVarInsn(Opcodes.ALOAD, 0);
+            method.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            method.visitInsn(Opcodes.RETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+
+            method = writer.visitMethod(Opcodes.ACC_PUBLIC, "name", "()Ljava/lang/String;", null, null);
+            method.visitCode();
+            method.visitLdcInsn(name);
+            method.visitInsn(Opcodes.ARETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+
+            if (hasLambda(i)) {
+                method = writer.visitMethod(Opcodes.ACC_PUBLIC, "run", "()V", null, null);
+                method.visitCode();
+                method.visitInvokeDynamicInsn("run", "()Ljava/lang/Runnable;", METAFACTORY,
+                        Type.getType("()V"),
+                        new Handle(Opcodes.H_INVOKESTATIC, name, "lambda$run$0", "()V", false),
+                        Type.getType("()V"));
+                method.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/lang/Runnable", "run", "()V", true);
+                method.visitInsn(Opcodes.RETURN);
+                method.visitMaxs(0, 0);
+                method.visitEnd();
+
+                method = writer.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, "lambda$run$0", "()V", null, null);
+                method.visitCode();
+                method.visitInsn(Opcodes.RETURN);
+                method.visitMaxs(0, 0);
+                method.visitEnd();
+            }
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    static boolean isInterface(int i) {
+        return i % INTERFACE_EVERY == 0;
+    }
+
+    static boolean hasLambda(int i) {
+        return !isInterface(i) && i % LAMBDA_EVERY == 0;
+    }
+
+    static void delete(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+/**
+ * What the plugin needs to know about a class file without running retrolambda on it, read from
+ * its header, constant pool and method table. Code is never parsed.
+ */
+@CompileStatic
+class ClassFileInfo {
+    private static final int MAGIC = (int) 0xCAFEBABEL
+    private static final int ACC_PRIVATE = 0x0002
+    private static final int ACC_INTERFACE = 0x0200
+    private static final int ACC_ABSTRACT = 0x0400
+    private static final int ACC_SYNTHETIC = 0x1000
+    private static final byte[] CLINIT = '<clinit>'.getBytes('UTF-8')
+    // Retrolambda removes calls to Throwable.addSuppressed, which try-with-resources generates, and
+    // replaces the calls to Objects.requireNonNull that javac 9+ generates, since neither exists
+    // before java 7.
+    private static final byte[] ADD_SUPPRESSED = 'addSuppressed'.getBytes('UTF-8')
+    private static final byte[] REQUIRE_NON_NULL = 'requireNonNull'.getBytes('UTF-8')
+
+    /** The internal name, ex: {@code com/example/Foo$Bar}. */
+    String name
+    String superName
+    List<String> interfaces = []
+    boolean isInterface
+    int majorVersion
+    boolean usesInvokeDynamic
+    /** Every class named in the constant pool other than this one. */
+    Set<String> references = new HashSet<>()
+    /**
+     * A hash of the signatures of the default and static methods of an interface, or null if it
+     * doesn't have any. These are what retrolambda moves to the companion class.
+     */
+    String defaultMethodsHash
+
+    List<String> getSupertypes() {
+        List<String> result = []
+        if (superName != null) {
+            result.add(superName)
+        }
+        result.addAll(interfaces)
+        return result
+    }
+
+    static ClassFileInfo read(File file) {
+        InputStream input = new BufferedInputStream(new FileInputStream(file))
+        try {
+            return read(input)
+        } finally {
+            input.close()
+        }
+    }
+
+    static ClassFileInfo read(InputStream input) {
+        DataInputStream data = new DataInputStream(input)
+        if (data.readInt() != MAGIC) {
+            throw new IOException('Not a class file')
+        }
+        ClassFileInfo info = new ClassFileInfo()
+        data.readUnsignedShort() // minor version
+        info.majorVersion = data.readUnsignedShort()
+
+        int count = data.readUnsignedShort()
+        String[] strings = new String[count]
+        int[] classes = new int[count]
+        for (int i = 1; i < count; i++) {
+            int tag = data.readUnsignedByte()
+            switch (tag) {
+                case 1: // Utf8
+                    strings[i] = data.readUTF()
+                    break
+                case 7: // Class
+                    classes[i] = data.readUnsignedShort()
+                    break
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    skip(data, 2)
+                    break
+                case 15: // MethodHandle
+                    skip(data, 3)
+                    break
+                case 18: // InvokeDynamic
+                    info.usesInvokeDynamic = true
+                    skip(data, 4)
+                    break
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                    skip(data, 4)
+                    break
+                case 5: // Long
+                case 6: // Double
+                    skip(data, 8)
+                    i++ // takes two slots
+                    break
+                default:
+                    throw new IOException("Unknown constant pool tag: $tag")
+            }
+        }
+
+        int access = data.readUnsignedShort()
+        info.isInterface = (access & ACC_INTERFACE) != 0
+        info.name = strings[classes[data.readUnsignedShort()]]
+        int superClass = data.readUnsignedShort()
+        info.superName = superClass != 0 ? strings[classes[superClass]] : null
+        int interfaceCount = data.readUnsignedShort()
+        for (int i = 0; i < interfaceCount; i++) {
+            info.interfaces.add(strings[classes[data.readUnsignedShort()]])
+        }
+        for (int i = 1; i < count; i++) {
+            if (classes[i] != 0) {
+                String className = strings[classes[i]]
+                // Array types only matter through their element type, which is listed on its own if used.
+                if (className != info.name && !className.startsWith('[')) {
+                    info.references.add(className)
+                }
+            }
+        }
+
+        skipMembers(data)
+        List<String> defaultMethods = []
+        int methodCount = data.readUnsignedShort()
+        for (int i = 0; i < methodCount; i++) {
+            int methodAccess = data.readUnsignedShort()
+            String methodName = strings[data.readUnsignedShort()]
+            String descriptor = strings[data.readUnsignedShort()]
+            skipAttributes(data)
+            if (info.isInterface && (methodAccess & (ACC_ABSTRACT | ACC_PRIVATE | ACC_SYNTHETIC)) == 0
+                    && methodName != '<clinit>') {
+                defaultMethods.add("$methodAccess $methodName$descriptor".toString())
+            }
+        }
+        if (!defaultMethods.isEmpty()) {
+            Collections.sort(defaultMethods)
+            info.defaultMethodsHash = RetrolambdaClassCache.hash(defaultMethods)
+        }
+        return info
+    }
+
+    /**
+     * Whether retrolambda has anything to do for a class besides lowering its version: it uses
+     * invokedynamic, it's an interface with method bodies, or it calls addSuppressed or
+     * requireNonNull. Those last two are matched by method name alone, which may send a class to
+     * retrolambda that didn't need it but never misses one. Unlike {@link #read(InputStream)} this
+     * only walks the bytes, without decoding any strings, since it's run on every class.
+     */
+    static boolean needsBackport(byte[] bytes) {
+        int count = u2(bytes, 8)
+        // Offsets of the Utf8 entries, to find the name of a method.
+        int[] strings = new int[count]
+        int offset = 10
+        for (int i = 1; i < count; i++) {
+            int tag = bytes[offset] & 0xFF
+            switch (tag) {
+                case 1: // Utf8
+                    strings[i] = offset + 1
+                    if (utf8Equals(bytes, offset + 1, ADD_SUPPRESSED) || utf8Equals(bytes, offset + 1, REQUIRE_NON_NULL)) {
+                        return true
+                    }
+                    offset += 3 + u2(bytes, offset + 1)
+                    break
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3
+                    break
+                case 15: // MethodHandle
+                    offset += 4
+                    break
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                    offset += 5
+                    break
+                case 5: // Long
+                case 6: // Double
+                    offset += 9
+                    i++ // takes two slots
+                    break
+                default:
+                    // InvokeDynamic, Dynamic, or something this doesn't know about.
+                    return true
+            }
+        }
+
+        int access = u2(bytes, offset)
+        if ((access & ACC_INTERFACE) == 0) {
+            return false
+        }
+        offset += 6 // access, this, super
+        offset += 2 + 2 * u2(bytes, offset) // interfaces
+        int fieldCount = u2(bytes, offset)
+        offset += 2
+        for (int i = 0; i < fieldCount; i++) {
+            offset = skipAttributes(bytes, offset + 6)
+        }
+        int methodCount = u2(bytes, offset)
+        offset += 2
+        for (int i = 0; i < methodCount; i++) {
+            int methodAccess = u2(bytes, offset)
+            if ((methodAccess & ACC_ABSTRACT) == 0 && !utf8Equals(bytes, strings[u2(bytes, offset + 2)], CLINIT)) {
+                return true
+            }
+            offset = skipAttributes(bytes, offset + 6)
+        }
+        return false
+    }
+
+    private static int skipAttributes(byte[] bytes, int offset) {
+        int count = u2(bytes, offset)
+        offset += 2
+        for (int i = 0; i < count; i++) {
+            int length = ((bytes[offset + 2] & 0xFF) << 24) | ((bytes[offset + 3] & 0xFF) << 16) |
+                    ((bytes[offset + 4] & 0xFF) << 8) | (bytes[offset + 5] & 0xFF)
+            offset += 6 + length
+        }
+        return offset
+    }
+
+    private static boolean utf8Equals(byte[] bytes, int offset, byte[] expected) {
+        if (u2(bytes, offset) != expected.length) {
+            return false
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[offset + 2 + i] != expected[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private static int u2(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF)
+    }
+
+    private static void skipMembers(DataInputStream data) {
+        int count = data.readUnsignedShort()
+        for (int i = 0; i < count; i++) {
+            skip(data, 6) // access, name, descriptor
+            skipAttributes(data)
+        }
+    }
+
+    private static void skipAttributes(DataInputStream data) {
+        int count = data.readUnsignedShort()
+        for (int i = 0; i < count; i++) {
+            skip(data, 2) // name
+            skip(data, data.readInt())
+        }
+    }
+
+    private static void skip(DataInputStream data, int length) {
+        int remaining = length
+        while (remaining > 0) {
+            int skipped = data.skipBytes(remaining)
+            if (skipped <= 0) {
+                // skipBytes may stop early without being at the end, so make sure by reading.
+                data.readByte()
+                skipped = 1
+            }
+            remaining -= skipped
+        }
+    }
+}
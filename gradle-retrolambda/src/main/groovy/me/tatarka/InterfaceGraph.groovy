@@ -0,0 +1,212 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+/**
+ * The type hierarchy of the classes in an input dir, used to backport default methods
+ * incrementally.
+ * <p>
+ * Retrolambda only knows about the classes it is given, so a changed class has to be run along with
+ * its supertypes and the interfaces it calls static methods on. When the default or static methods
+ * of an interface change, its implementors and callers have to be run again too.
+ * <p>
+ * All paths are relative to the input dir and use '/' as the separator.
+ */
+@CompileStatic
+class InterfaceGraph {
+    private final File inputDir
+    private final Map<String, ClassFileInfo> classes = new HashMap<>()
+
+    InterfaceGraph(File inputDir) {
+        this.inputDir = inputDir
+    }
+
+    /**
+     * Loads the graph from the given file, or returns null if there isn't one. Without it it's
+     * unknown what changed in the hierarchy, so everything has to be run.
+     */
+    static InterfaceGraph load(File graphFile, File inputDir) {
+        if (!graphFile.exists()) {
+            return null
+        }
+        InterfaceGraph graph = new InterfaceGraph(inputDir)
+        graphFile.eachLine('UTF-8') { String line ->
+            String[] parts = line.split('\t', -1)
+            ClassFileInfo info = new ClassFileInfo()
+            info.name = parts[1]
+            info.superName = parts[2] ?: null
+            info.interfaces = split(parts[3])
+            info.isInterface = parts[4] == 'I'
+            info.defaultMethodsHash = parts[5] ?: null
+            info.references = new HashSet<>(split(parts[6]))
+            graph.classes.put(parts[0], info)
+        }
+        return graph
+    }
+
+    /**
+     * Builds the graph by reading every class in the input dir.
+     */
+    static InterfaceGraph scan(File inputDir) {
+        InterfaceGraph graph = new InterfaceGraph(inputDir)
+        if (inputDir.exists()) {
+            inputDir.eachFileRecurse { File file ->
+                if (file.name.endsWith('.class')) {
+                    graph.classes.put(graph.relative(file), ClassFileInfo.read(file))
+                }
+            }
+        }
+        return graph
+    }
+
+    /**
+     * Updates the graph with the changed and removed input files, and returns every input class
+     * that has to be run through retrolambda with them. Changed resources aren't part of the graph
+     * and are returned as is, so that they are still copied over.
+     */
+    Set<File> update(Collection<File> changed, Collection<File> removed) {
+        // Types whose hierarchy or default methods are different than last time.
+        Set<String> affected = new HashSet<>()
+        for (File file : removed) {
+            ClassFileInfo old = classes.remove(relative(file))
+            if (old != null) {
+                affected.add(old.name)
+            }
+        }
+        Set<String> changedNames = new HashSet<>()
+        List<File> resources = []
+        for (File file : changed) {
+            if (!file.name.endsWith('.class')) {
+                resources.add(file)
+                continue
+            }
+            ClassFileInfo info = ClassFileInfo.read(file)
+            ClassFileInfo old = classes.put(relative(file), info)
+            changedNames.add(info.name)
+            if (old == null ? info.defaultMethodsHash != null : !sameHierarchy(old, info)) {
+                affected.add(info.name)
+            }
+        }
+
+        Map<String, String> paths = new HashMap<>()
+        Map<String, List<String>> subtypes = new HashMap<>()
+        Set<String> run = new HashSet<>(changedNames)
+        for (Map.Entry<String, ClassFileInfo> entry : classes.entrySet()) {
+            ClassFileInfo info = entry.value
+            paths.put(info.name, entry.key)
+            for (String supertype : info.supertypes) {
+                List<String> list = subtypes.get(supertype)
+                if (list == null) {
+                    list = []
+                    subtypes.put(supertype, list)
+                }
+                list.add(info.name)
+            }
+            if (!affected.isEmpty()) {
+                for (String reference : info.references) {
+                    if (affected.contains(reference)) {
+                        run.add(info.name)
+                        break
+                    }
+                }
+            }
+        }
+
+        // Everything that inherits from an affected type.
+        Set<String> visited = new HashSet<>(affected)
+        Deque<String> queue = new ArrayDeque<>(affected)
+        while (!queue.isEmpty()) {
+            List<String> list = subtypes.get(queue.poll())
+            if (list != null) {
+                for (String subtype : list) {
+                    run.add(subtype)
+                    if (visited.add(subtype)) {
+                        queue.add(subtype)
+                    }
+                }
+            }
+        }
+
+        // What retrolambda needs to see to backport them: their supertypes and the interfaces with
+        // default or static methods that they use.
+        Set<String> included = new HashSet<>()
+        queue = new ArrayDeque<>(run)
+        while (!queue.isEmpty()) {
+            String name = queue.poll()
+            if (!included.add(name)) {
+                continue
+            }
+            String path = paths.get(name)
+            if (path == null) {
+                continue
+            }
+            ClassFileInfo info = classes.get(path)
+            queue.addAll(info.supertypes)
+            for (String reference : info.references) {
+                String referencePath = paths.get(reference)
+                if (referencePath != null && classes.get(referencePath).defaultMethodsHash != null) {
+                    queue.add(reference)
+                }
+            }
+        }
+
+        Set<File> files = new LinkedHashSet<>(resources)
+        for (String name : included) {
+            String path = paths.get(name)
+            if (path != null) {
+                files.add(new File(inputDir, path))
+            }
+        }
+        return files
+    }
+
+    void save(File graphFile) {
+        graphFile.parentFile.mkdirs()
+        graphFile.withWriter('UTF-8') { Writer writer ->
+            for (Map.Entry<String, ClassFileInfo> entry : classes.entrySet()) {
+                ClassFileInfo info = entry.value
+                writer.write([
+                        entry.key,
+                        info.name,
+                        info.superName ?: '',
+                        info.interfaces.join(','),
+                        info.isInterface ? 'I' : 'C',
+                        info.defaultMethodsHash ?: '',
+                        info.references.join(',')
+                ].join('\t'))
+                writer.write('\n')
+            }
+        }
+    }
+
+    private static boolean sameHierarchy(ClassFileInfo old, ClassFileInfo info) {
+        return old.isInterface == info.isInterface &&
+                old.superName == info.superName &&
+                old.interfaces == info.interfaces &&
+                old.defaultMethodsHash == info.defaultMethodsHash
+    }
+
+    private static List<String> split(String value) {
+        return value.isEmpty() ? new ArrayList<String>() : Arrays.asList(value.split(','))
+    }
+
+    private String relative(File file) {
+        return inputDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/' as char)
+    }
+}
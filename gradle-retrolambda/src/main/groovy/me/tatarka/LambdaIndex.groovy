@@ -0,0 +1,208 @@
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+/**
+ * Maps each backported class to the classes retrolambda generated for it: its lambda classes and,
+ * for interfaces with default methods, its companion class. This is persisted next to the output so
+ * that removing the stale output of a changed class doesn't need to search its directory.
+ * <p>
+ * Every file that was put in the output dir is listed, resources included and even if nothing was
+ * generated for it. Other tasks may write to the same dir, and only what's listed here is ever
+ * considered stale.
+ * <p>
+ * All paths are relative to the output dir and use '/' as the separator.
+ */
+@CompileStatic
+class LambdaIndex {
+    private static final String LAMBDA = '$$Lambda$'
+
+    private final File outputDir
+    private final Collection<File> inputDirs
+    private final Map<String, Set<String>> generated = new HashMap<>()
+
+    /**
+     * The input dirs are what was backported into the output dir. They tell an input class whose
+     * name ends with '$' (common in Scala and Kotlin) from an interface companion.
+     */
+    LambdaIndex(File outputDir, Collection<File> inputDirs) {
+        this.outputDir = outputDir
+        this.inputDirs = inputDirs
+    }
+
+    /**
+     * Loads the index from the given file. If there is no index yet, it is empty. The output dir
+     * isn't scanned instead, since what other tasks wrote there would be taken for stale output.
+     */
+    static LambdaIndex load(File indexFile, File outputDir, Collection<File> inputDirs) {
+        if (!indexFile.exists()) {
+            return new LambdaIndex(outputDir, inputDirs)
+        }
+        LambdaIndex index = new LambdaIndex(outputDir, inputDirs)
+        indexFile.eachLine('UTF-8') { String line ->
+            String[] parts = line.split('\t')
+            Set<String> files = new LinkedHashSet<>()
+            for (int i = 1; i < parts.length; i++) {
+                files.add(parts[i])
+            }
+            index.generated.put(parts[0], files)
+        }
+        return index
+    }
+
+    /**
+     * Builds the index by walking the whole output dir once. Everything in it is taken to be
+     * retrolambda's output, so this is only for a dir no other task writes to.
+     */
+    static LambdaIndex scan(File outputDir, Collection<File> inputDirs) {
+        LambdaIndex index = new LambdaIndex(outputDir, inputDirs)
+        if (outputDir.exists()) {
+            List<File> files = []
+            outputDir.eachFileRecurse { File file ->
+                if (file.isFile() && !file.name.contains(LAMBDA)) {
+                    files.add(file)
+                }
+            }
+            index.update(files)
+        }
+        return index
+    }
+
+    /**
+     * Finds the generated classes for the given output classes, listing each directory only once
+     * no matter how many of the classes are in it. Anything that isn't a class is skipped.
+     */
+    static Map<File, List<File>> generatedBy(File outputDir, Collection<File> inputDirs, Collection<File> classFiles) {
+        Map<File, Map<String, File>> byDir = new HashMap<>()
+        for (File classFile : classFiles) {
+            if (!classFile.name.endsWith('.class')) {
+                continue
+            }
+            Map<String, File> classes = byDir.get(classFile.parentFile)
+            if (classes == null) {
+                classes = new HashMap<>()
+                byDir.put(classFile.parentFile, classes)
+            }
+            classes.put(classFile.name.substring(0, classFile.name.length() - '.class'.length()), classFile)
+        }
+
+        Map<File, List<File>> result = new HashMap<>()
+        for (Map.Entry<File, Map<String, File>> entry : byDir.entrySet()) {
+            Map<String, File> classes = entry.value
+            for (File file : entry.key.listFiles() ?: new File[0]) {
+                String name = file.name
+                String owner
+                int lambda = name.indexOf(LAMBDA)
+                if (lambda != -1) {
+                    owner = name.substring(0, lambda)
+                } else if (name.endsWith('$.class') && !isInput(outputDir, inputDirs, file)) {
+                    // Interface companion
+                    owner = name.substring(0, name.length() - '$.class'.length())
+                } else {
+                    continue
+                }
+                File classFile = classes.get(owner)
+                if (classFile == null) {
+                    continue
+                }
+                List<File> files = result.get(classFile)
+                if (files == null) {
+                    files = []
+                    result.put(classFile, files)
+                }
+                files.add(file)
+            }
+        }
+        return result
+    }
+
+    private static boolean isInput(File outputDir, Collection<File> inputDirs, File file) {
+        String path = outputDir.toPath().relativize(file.toPath()).toString()
+        for (File inputDir : inputDirs) {
+            if (new File(inputDir, path).isFile()) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Records what was generated for the given output files, replacing what was there before.
+     * Nothing is generated for a resource, but it is still listed as an output.
+     */
+    synchronized void update(Collection<File> outputs) {
+        Map<File, List<File>> found = generatedBy(outputDir, inputDirs, outputs)
+        for (File output : outputs) {
+            if (!output.exists()) {
+                generated.remove(relative(output))
+            } else {
+                Set<String> paths = new LinkedHashSet<>()
+                for (File file : found.get(output) ?: Collections.<File> emptyList()) {
+                    paths.add(relative(file))
+                }
+                generated.put(relative(output), paths)
+            }
+        }
+    }
+
+    /**
+     * Deletes the classes generated for the given output class and forgets about them.
+     */
+    synchronized int deleteGenerated(File classFile) {
+        int deleted = 0
+        Set<String> files = generated.remove(relative(classFile))
+        if (files != null) {
+            for (String file : files) {
+                if (new File(outputDir, file).delete()) deleted++
+            }
+        }
+        return deleted
+    }
+
+    synchronized void clear() {
+        generated.clear()
+    }
+
+    /**
+     * All the files that are listed, both the outputs and what was generated for them.
+     */
+    synchronized Set<File> files() {
+        Set<File> files = new LinkedHashSet<>()
+        for (Map.Entry<String, Set<String>> entry : generated.entrySet()) {
+            files.add(new File(outputDir, entry.key))
+            for (String file : entry.value) {
+                files.add(new File(outputDir, file))
+            }
+        }
+        return files
+    }
+
+    /**
+     * The same index for when the files it lists are moved to another dir.
+     */
+    synchronized LambdaIndex rebase(File dir) {
+        LambdaIndex index = new LambdaIndex(dir, inputDirs)
+        for (Map.Entry<String, Set<String>> entry : generated.entrySet()) {
+            index.generated.put(entry.key, new LinkedHashSet<String>(entry.value))
+        }
+        return index
+    }
+
+    synchronized void save(File indexFile) {
+        indexFile.parentFile.mkdirs()
+        indexFile.withWriter('UTF-8') { Writer writer ->
+            for (Map.Entry<String, Set<String>> entry : generated.entrySet()) {
+                writer.write(entry.key)
+                for (String file : entry.value) {
+                    writer.write('\t')
+                    writer.write(file)
+                }
+                writer.write('\n')
+            }
+        }
+    }
+
+    private String relative(File file) {
+        return outputDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/' as char)
+    }
+}
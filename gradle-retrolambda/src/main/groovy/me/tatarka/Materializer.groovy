@@ -0,0 +1,84 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
+/**
+ * Puts a file that is the same as an existing one in place without copying it when possible. A hard
+ * link is used if the file system supports it and both are on the same volume, otherwise the bytes
+ * are transferred from channel to channel.
+ * <p>
+ * A linked file shares its contents with where it came from, so anything writing an output has to
+ * replace the file instead of writing to it in place, see {@link #prepareForWrite(File)}.
+ */
+@CompileStatic
+class Materializer {
+    // Once linking fails it's assumed to keep failing, so it isn't tried for every file.
+    private volatile boolean canLink = true
+
+    void materialize(File source, File target) throws IOException {
+        prepareForWrite(target)
+        if (canLink) {
+            try {
+                Files.createLink(target.toPath(), source.toPath())
+                return
+            } catch (IOException | UnsupportedOperationException e) {
+                canLink = false
+            }
+        }
+        transfer(source, target)
+    }
+
+    /**
+     * Copies the file, for when the target must not share its contents with the source, like
+     * files restored from a cache other builds read from.
+     */
+    static void copy(File source, File target) throws IOException {
+        prepareForWrite(target)
+        transfer(source, target)
+    }
+
+    /**
+     * Removes the file so that writing to it creates a new file rather than writing through a link.
+     */
+    static void prepareForWrite(File file) throws IOException {
+        Files.deleteIfExists(file.toPath())
+    }
+
+    private static void transfer(File source, File target) throws IOException {
+        FileChannel input = FileChannel.open(source.toPath(), StandardOpenOption.READ)
+        try {
+            FileChannel output = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)
+            try {
+                long size = input.size()
+                long position = 0
+                while (position < size) {
+                    position += input.transferTo(position, size - position, output)
+                }
+            } finally {
+                output.close()
+            }
+        } finally {
+            input.close()
+        }
+    }
+}
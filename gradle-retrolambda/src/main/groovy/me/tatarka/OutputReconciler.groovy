@@ -0,0 +1,89 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+import org.gradle.api.logging.Logger
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Brings the output dir in line with what a full run produced in a staging dir, instead of wiping it
+ * and writing everything again. A file whose bytes didn't change is left alone so it keeps its
+ * timestamp, and tasks downstream that look at the output incrementally only see what really
+ * changed.
+ */
+@CompileStatic
+class OutputReconciler {
+
+    /**
+     * Moves the changed files from the staging dir to the output dir, and deletes the previous
+     * outputs that weren't produced again. Returns how many were deleted.
+     */
+    static int reconcile(File stagingDir, File outputDir, Collection<File> previousOutputs, Logger logger) {
+        Set<File> expected = new HashSet<>()
+        int written = 0
+        int unchanged = 0
+        if (stagingDir.exists()) {
+            stagingDir.eachFileRecurse { File staged ->
+                if (!staged.isFile()) {
+                    return
+                }
+                File output = outputDir.toPath().resolve(stagingDir.toPath().relativize(staged.toPath())).toFile()
+                expected.add(output)
+                if (sameContent(staged, output)) {
+                    unchanged++
+                } else {
+                    output.parentFile.mkdirs()
+                    // Replacing rather than writing in place also keeps any hard link intact.
+                    Files.move(staged.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING)
+                    written++
+                }
+            }
+            stagingDir.deleteDir()
+        }
+
+        int removed = 0
+        for (File output : previousOutputs) {
+            if (!expected.contains(output) && output.delete()) {
+                removed++
+                deleteEmptyParents(output.parentFile, outputDir)
+            }
+        }
+        logger.info("Retrolambda output: $written written, $unchanged unchanged, $removed removed")
+        return removed
+    }
+
+    private static boolean sameContent(File a, File b) {
+        if (!b.isFile() || a.length() != b.length()) {
+            return false
+        }
+        return Arrays.equals(a.bytes, b.bytes)
+    }
+
+    private static void deleteEmptyParents(File dir, File outputDir) {
+        File current = dir
+        while (current != null && current != outputDir) {
+            String[] children = current.list()
+            if (children == null || children.length != 0 || !current.delete()) {
+                return
+            }
+            current = current.parentFile
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+/**
+ * Hands out the jvms that retrolambda runs are batched into when {@code batch} is set. Every task
+ * and transform in the build shares them instead of forking a jvm of its own. Each is a
+ * {@link RetrolambdaDaemon} that takes one run at a time, since retrolambda can't run concurrently
+ * in one jvm, and that stops shortly after the build.
+ * <p>
+ * Slots are numbered from 0 and the lowest free one is always used, so only as many jvms are
+ * started as there were concurrent runs, up to the max.
+ */
+@CompileStatic
+class RetrolambdaBatch {
+    /** Long enough to cover the gaps between retrolambda tasks in a build. */
+    static final long IDLE_TIMEOUT = 20 * 1000
+
+    private static final Object lock = new Object()
+    private static final TreeSet<Integer> freeSlots = new TreeSet<>()
+    private static int slots
+
+    /**
+     * Takes a free slot, waiting for one if there are already max in use.
+     */
+    static int acquire(int max) {
+        synchronized (lock) {
+            while (freeSlots.isEmpty() && slots >= Math.max(1, max)) {
+                lock.wait()
+            }
+            if (!freeSlots.isEmpty()) {
+                return freeSlots.pollFirst()
+            }
+            return slots++
+        }
+    }
+
+    static void release(int slot) {
+        synchronized (lock) {
+            freeSlots.add(slot)
+            lock.notifyAll()
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.nio.file.FileSystemException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+
+/**
+ * A cache of retrolambda's output for single classes, shared by all builds on the machine. Each
+ * entry is keyed by the hash of the input class and everything else that affects how it is
+ * backported, and holds the backported class along with the lambda classes generated for it.
+ * <p>
+ * Entries are written to a temp dir and atomically moved into place, so concurrent builds never
+ * see a partial entry. Restoring an entry touches it, and once in a while the least recently used
+ * entries are deleted to keep the cache under its max size.
+ */
+@CompileStatic
+class RetrolambdaClassCache {
+    private static final String VERSION = '1'
+    private static final long CLEANUP_INTERVAL = 60 * 60 * 1000
+
+    private final File cacheDir
+    private final long maxSize
+    private final String contextKey
+
+    RetrolambdaClassCache(File cacheDir, long maxSize, String contextKey) {
+        this.cacheDir = new File(cacheDir, "v$VERSION")
+        this.maxSize = maxSize
+        this.contextKey = contextKey
+    }
+
+    /**
+     * Builds a key out of all the given parts. Used both for the context key and the key of each
+     * class.
+     */
+    static String hash(List<?> parts) {
+        MessageDigest digest = MessageDigest.getInstance('SHA-1')
+        for (Object part : parts) {
+            if (part instanceof File) {
+                byte[] buffer = new byte[8192]
+                ((File) part).withInputStream { InputStream input ->
+                    int read
+                    while ((read = input.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read)
+                    }
+                }
+            } else if (part instanceof byte[]) {
+                digest.update((byte[]) part)
+            } else {
+                digest.update(String.valueOf(part).getBytes('UTF-8'))
+            }
+            digest.update((byte) 0)
+        }
+        return String.format('%040x', new BigInteger(1, digest.digest()))
+    }
+
+    String key(File classFile) {
+        return hash([contextKey, classFile])
+    }
+
+    boolean containsAll(Collection<String> keys) {
+        for (String key : keys) {
+            if (!entryDir(key).isDirectory()) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Copies the cached output for the given key into the dir, returning false if there is none.
+     * These are real copies rather than links, since the cache is shared with other projects and
+     * builds, and a task after this one may write to its inputs in place.
+     */
+    boolean restore(String key, File dir) {
+        File entry = entryDir(key)
+        File[] files = entry.listFiles()
+        if (files == null || files.length == 0) {
+            return false
+        }
+        try {
+            dir.mkdirs()
+            for (File file : files) {
+                Materializer.copy(file, new File(dir, file.name))
+            }
+            entry.setLastModified(System.currentTimeMillis())
+            return true
+        } catch (IOException e) {
+            // Most likely evicted while we were reading it, treat it as a miss.
+            return false
+        }
+    }
+
+    /**
+     * Stores the given output files under the key. If another build stored the same key first,
+     * theirs is kept.
+     */
+    void store(String key, List<File> files) {
+        File entry = entryDir(key)
+        if (entry.exists()) {
+            return
+        }
+        File tmp = new File(cacheDir, "tmp/${UUID.randomUUID()}")
+        tmp.mkdirs()
+        try {
+            for (File file : files) {
+                Files.copy(file.toPath(), new File(tmp, file.name).toPath())
+            }
+            entry.parentFile.mkdirs()
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE)
+        } catch (FileSystemException e) {
+            // Moving a dir onto one that isn't empty fails with a plain FileSystemException rather
+            // than FileAlreadyExistsException. Either way, if it's there it was stored concurrently
+            // by someone else.
+            if (!entry.isDirectory()) {
+                throw e
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.deleteDir()
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is under 80% of its max size. This
+     * walks the whole cache, so it only happens if it hasn't been done for a while.
+     */
+    void cleanup() {
+        File marker = new File(cacheDir, 'cleanup')
+        if (System.currentTimeMillis() - marker.lastModified() < CLEANUP_INTERVAL) {
+            return
+        }
+        cacheDir.mkdirs()
+        def lockFile = new RandomAccessFile(new File(cacheDir, 'cleanup.lock'), 'rw')
+        try {
+            FileChannel channel = lockFile.channel
+            FileLock lock = channel.tryLock()
+            if (lock == null) {
+                // Another build is already cleaning up.
+                return
+            }
+            try {
+                marker.text = ''
+                marker.setLastModified(System.currentTimeMillis())
+                evict()
+            } finally {
+                lock.release()
+            }
+        } finally {
+            lockFile.close()
+        }
+    }
+
+    private void evict() {
+        List<File> entries = []
+        Map<File, Long> sizes = [:]
+        long total = 0
+        for (File prefix : cacheDir.listFiles() ?: new File[0]) {
+            if (!prefix.isDirectory() || prefix.name == 'tmp') {
+                continue
+            }
+            for (File entry : prefix.listFiles() ?: new File[0]) {
+                long size = 0
+                for (File file : entry.listFiles() ?: new File[0]) {
+                    size += file.length()
+                }
+                entries.add(entry)
+                sizes.put(entry, size)
+                total += size
+            }
+        }
+        if (total <= maxSize) {
+            return
+        }
+        entries.sort { File entry -> entry.lastModified() }
+        long target = (long) (maxSize * 0.8)
+        for (File entry : entries) {
+            if (total <= target) {
+                break
+            }
+            total -= sizes.get(entry)
+            entry.deleteDir()
+        }
+    }
+
+    private File entryDir(String key) {
+        return new File(cacheDir, "${key.substring(0, 2)}/$key")
+    }
+}
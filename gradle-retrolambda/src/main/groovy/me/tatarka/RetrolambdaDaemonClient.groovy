@@ -0,0 +1,201 @@
+package me.tatarka
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+import org.gradle.api.GradleException
+import org.gradle.api.logging.Logger
+
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.security.MessageDigest
+
+/**
+ * Sends retrolambda runs to a {@link RetrolambdaDaemon}, starting one if needed. Daemons are shared
+ * between builds and are keyed by everything that affects the jvm they run in: the java
+ * executable, the retrolambda classpath, the jvm args and the heap size. A name keeps separate
+ * daemons for the same jvm apart, like the jvms of a {@link RetrolambdaBatch}.
+ */
+@CompileStatic
+class RetrolambdaDaemonClient {
+    private static final int MEMORY_LIMIT_PERCENT = 75
+    private static final long START_TIMEOUT = 30 * 1000
+
+    /**
+     * Guards starting daemons from multiple tasks in this jvm, the file lock guards against other
+     * builds.
+     */
+    private static final Object startLock = new Object()
+
+    private final File daemonsDir
+    private final String java
+    private final List<File> retrolambdaClasspath
+    private final List<String> jvmArgs
+    private final long idleTimeoutMillis
+    private final String maxHeap
+    private final Logger logger
+    private final String name
+
+    RetrolambdaDaemonClient(File daemonsDir, String java, List<File> retrolambdaClasspath, List<String> jvmArgs, long idleTimeoutMillis, String maxHeap, Logger logger, String name = null) {
+        this.daemonsDir = daemonsDir
+        this.java = java
+        this.retrolambdaClasspath = retrolambdaClasspath
+        this.jvmArgs = jvmArgs
+        this.idleTimeoutMillis = idleTimeoutMillis
+        this.maxHeap = maxHeap
+        this.logger = logger
+        this.name = name
+    }
+
+    /**
+     * Runs retrolambda with the given system properties, returning its output.
+     */
+    String run(Properties properties) {
+        File registryFile = registryFile()
+        IOException lastError = null
+        // A daemon may have stopped after we read the registry or died mid-run, retry once with a
+        // fresh one.
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Properties registry = readRegistry(registryFile)
+            if (registry == null) {
+                registry = startDaemon(registryFile)
+            }
+            try {
+                return send(registry, properties)
+            } catch (IOException e) {
+                logger.info("Retrolambda daemon at $registryFile is unavailable: $e")
+                registryFile.delete()
+                lastError = e
+            }
+        }
+        throw new GradleException("Could not run retrolambda in a daemon", lastError)
+    }
+
+    /**
+     * Where the daemon for this client writes its port and token while it runs.
+     */
+    @PackageScope
+    File registryFile() {
+        return new File(daemonsDir, "${key()}.properties")
+    }
+
+    private String send(Properties registry, Properties properties) {
+        int port = Integer.parseInt(registry.getProperty(RetrolambdaDaemon.PROPERTY_PORT))
+        Socket socket = new Socket(InetAddress.loopbackAddress, port)
+        try {
+            def out = new DataOutputStream(new BufferedOutputStream(socket.outputStream))
+            def input = new DataInputStream(new BufferedInputStream(socket.inputStream))
+            out.writeUTF(registry.getProperty(RetrolambdaDaemon.PROPERTY_TOKEN))
+            def bytes = new ByteArrayOutputStream()
+            properties.store(bytes, null)
+            RetrolambdaDaemon.writeBytes(out, bytes.toByteArray())
+            out.flush()
+
+            int status = input.readInt()
+            String output = new String(RetrolambdaDaemon.readBytes(input), 'UTF-8')
+            if (status != RetrolambdaDaemon.STATUS_SUCCESS) {
+                throw new GradleException("Retrolambda failed on ${properties.getProperty('retrolambda.inputDir')}:\n$output")
+            }
+            return output
+        } finally {
+            socket.close()
+        }
+    }
+
+    private Properties startDaemon(File registryFile) {
+        synchronized (startLock) {
+            daemonsDir.mkdirs()
+            def lockFile = new RandomAccessFile(new File(daemonsDir, registryFile.name.replaceFirst(/\.properties$/, '.lock')), 'rw')
+            try {
+                FileChannel channel = lockFile.channel
+                FileLock lock = channel.lock()
+                try {
+                    // Another build may have started one while we were waiting on the lock.
+                    Properties registry = readRegistry(registryFile)
+                    if (registry != null) {
+                        return registry
+                    }
+                    return launch(registryFile)
+                } finally {
+                    lock.release()
+                }
+            } finally {
+                lockFile.close()
+            }
+        }
+    }
+
+    private Properties launch(File registryFile) {
+        List<String> command = [java, "-Xmx$maxHeap".toString()]
+        command.addAll(jvmArgs)
+        command.addAll([
+                '-cp', daemonClasspath().join(File.pathSeparator),
+                RetrolambdaDaemon.name,
+                registryFile.absolutePath,
+                String.valueOf(idleTimeoutMillis),
+                String.valueOf(MEMORY_LIMIT_PERCENT)
+        ])
+        logger.info("Starting retrolambda daemon: ${command.join(' ')}")
+
+        File logFile = new File(daemonsDir, registryFile.name.replaceFirst(/\.properties$/, '.log'))
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+                .start()
+        process.outputStream.close()
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT
+        while (System.currentTimeMillis() < deadline) {
+            Properties registry = readRegistry(registryFile)
+            if (registry != null) {
+                return registry
+            }
+            try {
+                process.exitValue()
+                throw new GradleException("Retrolambda daemon failed to start, see $logFile")
+            } catch (IllegalThreadStateException e) {
+                // Still running
+            }
+            Thread.sleep(50)
+        }
+        process.destroy()
+        throw new GradleException("Timed out waiting for retrolambda daemon to start, see $logFile")
+    }
+
+    /**
+     * The daemon only needs retrolambda and the location of {@link RetrolambdaDaemon}, which is
+     * this plugin's jar.
+     */
+    private List<File> daemonClasspath() {
+        List<File> classpath = new ArrayList<>(retrolambdaClasspath)
+        classpath.add(new File(RetrolambdaDaemon.protectionDomain.codeSource.location.toURI()))
+        return classpath
+    }
+
+    private static Properties readRegistry(File registryFile) {
+        if (!registryFile.exists()) {
+            return null
+        }
+        Properties registry = new Properties()
+        try {
+            registryFile.withInputStream { InputStream input -> registry.load(input) }
+        } catch (IOException e) {
+            return null
+        }
+        return registry.getProperty(RetrolambdaDaemon.PROPERTY_PORT) ? registry : null
+    }
+
+    private String key() {
+        MessageDigest digest = MessageDigest.getInstance('SHA-1')
+        List<String> parts = [java, maxHeap]
+        parts.addAll(jvmArgs)
+        for (File file : daemonClasspath()) {
+            parts.add("${file.absolutePath}:${file.length()}:${file.lastModified()}".toString())
+        }
+        for (String part : parts) {
+            digest.update(part.getBytes('UTF-8'))
+            digest.update((byte) 0)
+        }
+        String key = new BigInteger(1, digest.digest()).toString(16)
+        return name != null ? "$key-$name".toString() : key
+    }
+}
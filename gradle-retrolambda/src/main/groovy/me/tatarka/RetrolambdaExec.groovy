@@ -17,144 +17,719 @@
 package me.tatarka
 
 import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+import org.gradle.api.GradleException
+import org.gradle.api.JavaVersion
 import org.gradle.api.Project
 import org.gradle.api.ProjectConfigurationException
-import org.gradle.api.artifacts.Configuration
-import org.gradle.api.artifacts.Dependency
-import org.gradle.api.file.FileCollection
-import org.gradle.process.JavaExecSpec
-import org.gradle.util.VersionNumber
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.util.GradleVersion
+
+import java.nio.file.FileSystemException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 import static me.tatarka.RetrolambdaPlugin.checkIfExecutableExists
 
 /**
  * Runs retrolambda with the given args, used by {@link RetrolambdaTask} and {@link RetrolambdaTransform}.
+ * It only works with what it's given and doesn't touch the project, so it can be used while a task
+ * is running.
  */
 @CompileStatic
 class RetrolambdaExec {
 
-    private static final int COMMANDLINE_LENGTH_LIMIT = 3496;
+    // Argument files kept around for reuse, per dir.
+    private static final int ARGUMENT_FILES_KEPT = 16
 
-    FileCollection classpath
+    Collection<File> classpath
     File inputDir;
     File outputDir;
-    FileCollection includedFiles
+    Collection<File> includedFiles
     List<String> jvmArgs;
     int bytecodeVersion;
     boolean defaultMethods;
+    RetrolambdaReport report = new RetrolambdaReport('retrolambda')
+    /** Where the classpath and included files are written for retrolambda to read. */
+    File argumentsDir
+    /** Where the peak heap of forked runs is kept, to size the next ones. See {@link RetrolambdaHeap}. */
+    File heapFile
+    /**
+     * A {@link RetrolambdaClassCache} to use even if {@code classCache} is off, like the one the
+     * android variants of a project share.
+     */
+    File classCacheDir
+    /** Needed to run in process, see {@link #createWorkers(Project, RetrolambdaSettings)}. */
+    RetrolambdaWorkers workers
 
-    private final Project project;
+    private final RetrolambdaSettings settings
+    private final List<File> retrolambdaClasspath
+    private final Logger logger = Logging.getLogger(RetrolambdaExec)
+    private final Materializer materializer = new Materializer()
+    // Whether inputClasses has been counted already, by the prescan or the cache.
+    private boolean inputsCounted
 
-    RetrolambdaExec(Project project) {
-        this.project = project;
+    RetrolambdaExec(RetrolambdaSettings settings, Collection<File> retrolambdaClasspath) {
+        this.settings = settings
+        this.retrolambdaClasspath = new ArrayList<>(retrolambdaClasspath)
+    }
+
+    /**
+     * The workers to run retrolambda in process with, if it's turned on and the worker api is
+     * available. This has to be created while configuring.
+     */
+    static RetrolambdaWorkers createWorkers(Project project, RetrolambdaSettings settings) {
+        if (settings.inProcess && GradleVersion.current() >= GradleVersion.version('5.0')) {
+            return project.objects.newInstance(RetrolambdaWorkers)
+        }
+        return null
     }
 
     public void exec() {
-        project.javaexec { JavaExecSpec exec ->
-            // Ensure retrolambda runs on java8
-            def retrolambda = project.extensions.getByType(RetrolambdaExtension.class)
-            def retrolambdaConfig = project.configurations.getByName("retrolambdaConfig")
-
-            if (!retrolambda.onJava8) {
-                def java = "${retrolambda.tryGetJdk()}/bin/java"
-                if (!checkIfExecutableExists(java)) {
-                    throw new ProjectConfigurationException("Cannot find executable: $java", (Throwable) null)
-                }
-                exec.executable java
-            }
+        long start = System.nanoTime()
+        RetrolambdaTool tool = RetrolambdaTool.of(retrolambdaClasspath)
+        report.phase('resolveRetrolambda', start)
 
-            String path = classpath.asPath
+        // Narrowing the run to what needs it requires includedFiles support. With default methods
+        // retrolambda needs to see the whole hierarchy, so everything has to go through it.
+        if (!defaultMethods && tool.supportsIncludedFiles) {
+            start = System.nanoTime()
+            boolean needed = prescan()
+            report.phase('prescan', start)
+            if (!needed) {
+                logger.info("No classes need backporting, skipping retrolambda")
+                return
+            }
+        }
 
-            exec.classpath = project.files(retrolambdaConfig)
-            exec.main = 'net.orfjackal.retrolambda.Main'
-            exec.jvmArgs = (Iterable) [
-                    '-Dretrolambda.inputDir=' + String.valueOf(inputDir),
-                    '-Dretrolambda.outputDir=' + String.valueOf(outputDir),
-                    '-Dretrolambda.classpath=' + path,
-                    '-Dretrolambda.bytecodeVersion=' + String.valueOf(bytecodeVersion),
-            ]
+        // The cache hands retrolambda only the misses, which requires includedFiles support.
+        if ((settings.classCache || classCacheDir != null) && tool.supportsIncludedFiles) {
+            execCached(tool)
+        } else {
+            execEngine(tool)
+        }
+    }
 
-            VersionNumber retrolambdaVersion = retrolambdaVersion(retrolambdaConfig)
-            boolean requiresJavaAgent = !requireVersion(retrolambdaVersion, '1.6.0')
-            if (requiresJavaAgent) {
-                exec.jvmArgs "-javaagent:$exec.classpath.asPath"
+    /**
+     * Most classes don't use lambdas, so retrolambda would only lower their version. Do that here
+     * instead by patching the version bytes, and only hand retrolambda the classes that use
+     * invokedynamic or are interfaces with method bodies. Returns false if there are none.
+     */
+    private boolean prescan() {
+        Collection<File> candidates = inputFiles()
+        List<File> needed = []
+        int patched = 0
+        for (File file : candidates) {
+            if (!file.isFile()) {
+                continue
+            }
+            File output = toOutput(file)
+            output.parentFile.mkdirs()
+            if (!file.name.endsWith('.class')) {
+                // Retrolambda would have copied it over as is.
+                materializer.materialize(file, output)
+                continue
+            }
+            report.count('inputClasses', 1)
+            byte[] bytes = file.bytes
+            if (ClassFileInfo.needsBackport(bytes)) {
+                needed.add(file)
+                continue
+            }
+            int majorVersion = ((bytes[6] & 0xFF) << 8) | (bytes[7] & 0xFF)
+            if (majorVersion > bytecodeVersion) {
+                bytes[4] = 0
+                bytes[5] = 0
+                bytes[6] = (byte) (bytecodeVersion >>> 8)
+                bytes[7] = (byte) bytecodeVersion
+                Materializer.prepareForWrite(output)
+                output.bytes = bytes
+                report.count('bytesWritten', bytes.length)
+            } else {
+                materializer.materialize(file, output)
             }
+            patched++
+        }
+        inputsCounted = true
+        report.count('versionPatched', patched)
+        logger.info("Retrolambda prescan: ${needed.size()} classes need backporting, $patched only had their version lowered")
+        includedFiles = needed
+        return !needed.isEmpty()
+    }
 
-            boolean supportIncludeFiles = requireVersion(retrolambdaVersion, '2.1.0')
-            if (supportIncludeFiles && classpathLengthGreaterThanLimit(path)) {
-                File classpathFile = File.createTempFile("inc-", ".path")
-                classpathFile.withWriter('UTF-8') { writer ->
-                    for (String item : this.classpath) {
-                        writer.write(item + "\n")
+    /**
+     * Restores what it can from the {@link RetrolambdaClassCache} and only runs retrolambda on the
+     * rest. Without default methods each class is backported on its own, so any subset can be
+     * run. With default methods retrolambda needs to see the whole hierarchy, so either everything
+     * comes from the cache or everything is run.
+     */
+    private void execCached(RetrolambdaTool tool) {
+        List<Object> context = ['bytecodeVersion', bytecodeVersion, 'defaultMethods', defaultMethods, 'retrolambda']
+        context.addAll(retrolambdaClasspath)
+        if (defaultMethods) {
+            // The output depends on the hierarchy, so every class on the classpath matters.
+            for (File file : classpath) {
+                if (file.isDirectory()) {
+                    for (File classFile : RetrolambdaUtil.listFiles(file)) {
+                        context.add(file.toPath().relativize(classFile.toPath()).toString())
+                        context.add(classFile)
                     }
+                } else if (file.exists()) {
+                    context.add(file)
                 }
-                classpathFile.deleteOnExit();
-                exec.jvmArgs "-Dretrolambda.classpathFile=${classpathFile.absolutePath}"
+            }
+        }
+        def cacheDir = classCacheDir ?: new File(settings.gradleUserHomeDir, 'caches/retrolambda/classes')
+        def cache = new RetrolambdaClassCache(cacheDir, settings.classCacheSize * 1024L * 1024L, RetrolambdaClassCache.hash(context))
+
+        long start = System.nanoTime()
+        Collection<File> candidates = inputFiles()
+        Map<File, String> keys = new LinkedHashMap<>()
+        for (File file : candidates) {
+            if (file.name.endsWith('.class')) {
+                keys.put(file, cache.key(file))
+            } else if (file.isFile()) {
+                // Only the classes are cached or run, so resources are copied over here like
+                // retrolambda would have.
+                File output = toOutput(file)
+                output.parentFile.mkdirs()
+                materializer.materialize(file, output)
+            }
+        }
+
+        Map<File, String> misses = new LinkedHashMap<>()
+        if (!defaultMethods || cache.containsAll(keys.values())) {
+            for (Map.Entry<File, String> entry : keys.entrySet()) {
+                if (!cache.restore(entry.value, toOutput(entry.key).parentFile)) {
+                    misses.put(entry.key, entry.value)
+                }
+            }
+        }
+        if (defaultMethods && !misses.isEmpty()) {
+            misses = keys
+        }
+        logger.info("Retrolambda class cache: ${keys.size() - misses.size()} hits, ${misses.size()} misses")
+        report.count('cacheHits', keys.size() - misses.size())
+        report.count('cacheMisses', misses.size())
+        if (!inputsCounted) {
+            report.count('inputClasses', keys.size())
+            inputsCounted = true
+        }
+        report.phase('classCache', start)
+
+        if (!misses.isEmpty()) {
+            includedFiles = new ArrayList<File>(misses.keySet())
+            execEngine(tool)
+            start = System.nanoTime()
+            List<File> outputs = []
+            for (File miss : misses.keySet()) {
+                outputs.add(toOutput(miss))
+            }
+            Map<File, List<File>> generated = LambdaIndex.generatedBy(outputDir, [inputDir], outputs)
+            for (Map.Entry<File, String> miss : misses.entrySet()) {
+                File output = toOutput(miss.key)
+                if (output.exists()) {
+                    List<File> files = [output]
+                    files.addAll(generated.get(output) ?: Collections.<File> emptyList())
+                    cache.store(miss.value, files)
+                }
+            }
+            report.phase('classCache', start)
+        }
+        cache.cleanup()
+    }
+
+    /**
+     * Outputs may be hard links made by the {@link Materializer}, and retrolambda writes to existing
+     * files in place, so remove what it's about to write first.
+     */
+    private List<File> prepareOutputs() {
+        Collection<File> inputs = inputFiles()
+        List<File> outputs = []
+        for (File file : inputs) {
+            if (file.name.endsWith('.class')) {
+                outputs.add(toOutput(file))
             } else {
-                exec.jvmArgs "-Dretrolambda.classpath=${path}"
+                // Retrolambda copies resources over too.
+                Materializer.prepareForWrite(toOutput(file))
+            }
+        }
+        Map<File, List<File>> generated = LambdaIndex.generatedBy(outputDir, [inputDir], outputs)
+        for (File output : outputs) {
+            Materializer.prepareForWrite(output)
+            for (File file : generated.get(output) ?: Collections.<File> emptyList()) {
+                Materializer.prepareForWrite(file)
             }
+        }
+        return outputs
+    }
 
-            if (includedFiles != null) {
-                if (supportIncludeFiles && changeFileLengthGreaterThanLimit(includedFiles)) {
-                    def includedFile = File.createTempFile("inc-", ".list")
-                    includedFile.withWriter('UTF-8') { writer ->
-                        for (File file : includedFiles) {
-                            writer.write(file.toString() + "\n")
-                        }
-                    }
-                    includedFile.deleteOnExit();
-                    exec.jvmArgs "-Dretrolambda.includedFilesFile=${includedFile.absolutePath}"
+    @PackageScope
+    File toOutput(File file) {
+        return outputDir.toPath().resolve(inputDir.toPath().relativize(file.toPath())).toFile()
+    }
+
+    private Collection<File> inputFiles() {
+        return includedFiles != null ? includedFiles : RetrolambdaUtil.listFiles(inputDir)
+    }
+
+    private void execEngine(RetrolambdaTool tool) {
+        long start = System.nanoTime()
+        List<File> outputs = prepareOutputs()
+        report.phase('prepareOutputs', start)
+
+        start = System.nanoTime()
+        List<List<File>> shards = canShard(tool) ? shard() : null
+        if (shards != null && shards.size() > 1) {
+            logger.info("Retrolambda running ${shards.size()} shards in parallel")
+            report.count('shards', shards.size())
+            List<Runnable> runs = []
+            for (List<File> files : shards) {
+                RetrolambdaExec exec = new RetrolambdaExec(settings, retrolambdaClasspath)
+                exec.classpath = classpath
+                exec.inputDir = inputDir
+                exec.outputDir = outputDir
+                exec.includedFiles = files
+                exec.jvmArgs = jvmArgs
+                exec.bytecodeVersion = bytecodeVersion
+                exec.defaultMethods = defaultMethods
+                exec.report = report
+                exec.argumentsDir = argumentsDir
+                exec.heapFile = heapFile
+                runs.add({ exec.runEngine(tool) } as Runnable)
+            }
+            runParallel(runs)
+        } else {
+            runEngine(tool)
+        }
+        report.phase('engine', start)
+
+        if (!inputsCounted) {
+            report.count('inputClasses', outputs.size())
+        }
+        report.count('classesRewritten', outputs.size())
+        Map<File, List<File>> generated = LambdaIndex.generatedBy(outputDir, [inputDir], outputs)
+        for (File output : outputs) {
+            report.count('bytesWritten', output.length())
+            for (File file : generated.get(output) ?: Collections.<File> emptyList()) {
+                report.count('lambdaClasses', 1)
+                report.count('bytesWritten', file.length())
+            }
+        }
+    }
+
+    private void runEngine(RetrolambdaTool tool) {
+        if (isInProcess(tool)) {
+            execInProcess(tool)
+        } else if (settings.daemon && canRunInDaemon(tool)) {
+            execInDaemon(tool)
+        } else if (settings.batch && canRunInDaemon(tool)) {
+            execInBatch(tool)
+        } else {
+            execForked(tool)
+        }
+    }
+
+    /**
+     * Shards need to be given their files, which requires includedFiles support. In process and
+     * in the daemon there is only one jvm, which can't run retrolambda more than once at a time.
+     */
+    private boolean canShard(RetrolambdaTool tool) {
+        return settings.shards > 1 && tool.supportsIncludedFiles && !isInProcess(tool) && !(settings.daemon && canRunInDaemon(tool))
+    }
+
+    /**
+     * Splits the input classes into {@link RetrolambdaShards}. They share the classpath argument
+     * file, and write different files to the output dir so there is nothing to merge.
+     */
+    private List<List<File>> shard() {
+        Collection<File> files = includedFiles
+        if (files == null) {
+            // Retrolambda would have copied everything else over as is, which shards don't do.
+            files = []
+            for (File file : RetrolambdaUtil.listFiles(inputDir)) {
+                if (file.name.endsWith('.class')) {
+                    files.add(file)
                 } else {
-                    def includedArg = "-Dretrolambda.includedFiles=${includedFiles.join(File.pathSeparator)}"
-                    exec.jvmArgs includedArg
-                    project.logger.quiet(includedArg)
+                    File output = toOutput(file)
+                    output.parentFile.mkdirs()
+                    materializer.materialize(file, output)
                 }
+            }
+        }
+        return RetrolambdaShards.split(inputDir, files, settings.shards, defaultMethods)
+    }
+
+    /**
+     * Runs retrolambda in a new jvm. This starts the process itself rather than through the
+     * project, so that it can be done without it.
+     */
+    private void execForked(RetrolambdaTool tool) {
+        report.count('forks', 1)
+        List<String> command = []
+        String javaHome
+        int javaVersion
+        // Ensure retrolambda runs on java8
+        if (!settings.onJava8) {
+            javaHome = settings.tryGetJdk()
+            javaVersion = RetrolambdaTool.jdkVersion(javaHome)
+            def java = "$javaHome/bin/java"
+            if (!checkIfExecutableExists(java)) {
+                throw new ProjectConfigurationException("Cannot find executable: $java", (Throwable) null)
+            }
+            command.add(java.toString())
+        } else {
+            javaHome = System.getProperty('java.home')
+            // Like "1.8" or "11".
+            String specification = System.getProperty('java.specification.version')
+            javaVersion = Integer.parseInt(specification.startsWith('1.') ? specification.substring(2) : specification)
+            command.add(new File(javaHome, 'bin/java').absolutePath)
+        }
+
+        String retrolambdaPath = retrolambdaClasspath.join(File.pathSeparator)
+        if (tool.requiresJavaAgent) {
+            command.add("-javaagent:$retrolambdaPath".toString())
+        }
+
+        long start = System.nanoTime()
+        for (Map.Entry<String, String> property : retrolambdaProperties(tool).entrySet()) {
+            command.add("-D${property.key}=${property.value}".toString())
+        }
+        report.phase('engine.arguments', start)
+
+        for (String arg : jvmArgs) {
+            command.add(arg)
+        }
+        int classes = includedFiles != null ? includedFiles.size() : RetrolambdaUtil.listFiles(inputDir).size()
+        List<String> heapArgs = RetrolambdaHeap.jvmArgs(jvmArgs, heapFile, inputDir, classes, classpath)
+        int heapArgsIndex = command.size()
+        command.addAll(heapArgs)
+
+        List<File> forkClasspath = new ArrayList<>(retrolambdaClasspath)
+        if (heapFile != null) {
+            forkClasspath.add(new File(RetrolambdaFork.protectionDomain.codeSource.location.toURI()))
+        }
 
+        RetrolambdaStartup startup = null
+        if (settings.fastStartup) {
+            def archivesDir = new File(settings.gradleUserHomeDir, 'caches/retrolambda/archives')
+            startup = RetrolambdaStartup.of(archivesDir, javaHome, javaVersion, forkClasspath, classes)
+            command.addAll(startup.jvmArgs)
+            if (startup.smallRun) {
+                report.count('tieredStopForks', 1)
             }
+            if (startup.usingArchive) {
+                report.count('archivedForks', 1)
+            }
+        }
+
+        File peakFile = null
+        if (heapFile != null) {
+            heapFile.parentFile.mkdirs()
+            peakFile = File.createTempFile('peak-', '.txt', heapFile.parentFile)
+            command.addAll(['-cp', forkClasspath.join(File.pathSeparator), RetrolambdaFork.name, peakFile.absolutePath])
+        } else {
+            command.addAll(['-cp', retrolambdaPath, 'net.orfjackal.retrolambda.Main'])
+        }
 
-            if (defaultMethods) {
-                exec.jvmArgs "-Dretrolambda.defaultMethods=true"
+        boolean succeeded = false
+        try {
+            List<String> retryArgs = RetrolambdaHeap.retryJvmArgs(jvmArgs, heapArgs)
+            if (!runForked(command, retryArgs != null)) {
+                // The heap was estimated too small, most likely on the first run of the input dir
+                // before there was a peak to go by.
+                logger.info("Retrolambda ran out of memory, running again with ${retryArgs.join(' ')}")
+                report.count('heapRetries', 1)
+                command.subList(heapArgsIndex, heapArgsIndex + heapArgs.size()).clear()
+                command.addAll(heapArgsIndex, retryArgs)
+                runForked(command, false)
             }
+            succeeded = true
+        } finally {
+            if (peakFile != null) {
+                recordPeakHeap(peakFile, classes)
+            }
+            if (startup != null) {
+                startup.finish(succeeded)
+            }
+        }
+    }
 
-            for (String arg : jvmArgs) {
-                exec.jvmArgs arg
+    /**
+     * Runs the fork. Returns false if it ran out of memory and can be retried, any other failure is
+     * thrown.
+     */
+    private boolean runForked(List<String> command, boolean canRetry) {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start()
+        TimingOutputStream output = new TimingOutputStream(System.out, report, System.nanoTime())
+        InputStream input = process.inputStream
+        try {
+            byte[] buffer = new byte[8192]
+            int read
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read)
             }
+        } finally {
+            input.close()
+            output.flush()
+        }
+        int exitValue = process.waitFor()
+        if (exitValue != 0) {
+            if (canRetry && output.outOfMemory) {
+                return false
+            }
+            throw new GradleException("Retrolambda finished with non-zero exit value $exitValue")
+        }
+        return true
+    }
+
+    private void recordPeakHeap(File peakFile, int classes) {
+        try {
+            String peak = peakFile.getText('UTF-8').trim()
+            if (peak.isLong()) {
+                report.count('forkPeakHeapBytes', Long.parseLong(peak))
+                RetrolambdaHeap.record(heapFile, inputDir, classes, Long.parseLong(peak))
+            }
+        } catch (IOException e) {
+            logger.info("Could not record retrolambda heap usage: $e")
+        } finally {
+            peakFile.delete()
+        }
+    }
+
+    /**
+     * Runs retrolambda inside the gradle daemon through the worker api. The retrolambda classes are
+     * loaded in their own classloader which is kept around between tasks and builds, see
+     * {@link RetrolambdaRunnable}.
+     */
+    private void execInProcess(RetrolambdaTool tool) {
+        report.count('inProcessRuns', 1)
+        Properties properties = new Properties()
+        properties.putAll(retrolambdaProperties(tool))
+
+        workers.run(retrolambdaClasspath, properties)
+    }
+
+    /**
+     * Runs retrolambda in a long-lived jvm that is shared between builds, see
+     * {@link RetrolambdaDaemonClient}.
+     */
+    private void execInDaemon(RetrolambdaTool tool) {
+        runInDaemon(tool, settings.daemonIdleTimeout * 60 * 1000L, null)
+    }
+
+    /**
+     * Runs retrolambda in one of the jvms shared by every project in the build, see
+     * {@link RetrolambdaBatch}.
+     */
+    private void execInBatch(RetrolambdaTool tool) {
+        report.count('batchedRuns', 1)
+        int slot = RetrolambdaBatch.acquire(settings.batchJvms)
+        try {
+            runInDaemon(tool, RetrolambdaBatch.IDLE_TIMEOUT, "batch$slot".toString())
+        } finally {
+            RetrolambdaBatch.release(slot)
+        }
+    }
+
+    private void runInDaemon(RetrolambdaTool tool, long idleTimeoutMillis, String name) {
+        Properties properties = new Properties()
+        properties.putAll(retrolambdaProperties(tool))
+
+        def java = "${settings.tryGetJdk()}/bin/java"
+        if (!checkIfExecutableExists(java)) {
+            throw new ProjectConfigurationException("Cannot find executable: $java", (Throwable) null)
+        }
+        def daemonsDir = new File(settings.gradleUserHomeDir, 'retrolambda/daemons')
+        def client = new RetrolambdaDaemonClient(daemonsDir, java, retrolambdaClasspath, jvmArgs, idleTimeoutMillis, settings.daemonMaxHeap, logger, name)
+        logger.info(client.run(properties))
+    }
+
+    /**
+     * The daemon and batch jvms run retrolambda the same way as in process, so they can't provide a
+     * javaagent.
+     */
+    private boolean canRunInDaemon(RetrolambdaTool tool) {
+        if (tool.requiresJavaAgent) {
+            logger.info("Retrolambda ${tool.version} requires a javaagent, forking instead")
+            return false
         }
+        return true
+    }
+
+    boolean isInProcess() {
+        return isInProcess(RetrolambdaTool.of(retrolambdaClasspath))
+    }
+
+    private boolean isInProcess(RetrolambdaTool tool) {
+        return settings.inProcess && canRunInProcess(tool)
     }
 
-    private static boolean classpathLengthGreaterThanLimit(String path) {
-        return path.length() > COMMANDLINE_LENGTH_LIMIT
+    /**
+     * Retrolambda can only run in the gradle daemon if it doesn't need anything only a fork can
+     * provide: gradle must be running on java 8 (retrolambda hooks into the jdk's lambda
+     * metafactory), the worker api must be available, retrolambda must not require a javaagent
+     * and there must not be any custom jvm args.
+     */
+    private boolean canRunInProcess(RetrolambdaTool tool) {
+        if (JavaVersion.current() != JavaVersion.VERSION_1_8) {
+            logger.info("Retrolambda can only run in process on java 8, forking instead")
+            return false
+        }
+        if (workers == null) {
+            logger.info("Retrolambda can only run in process on gradle 5.0+, forking instead")
+            return false
+        }
+        if (tool.requiresJavaAgent) {
+            logger.info("Retrolambda ${tool.version} requires a javaagent, forking instead")
+            return false
+        }
+        if (jvmArgs) {
+            logger.info("Retrolambda jvmArgs $jvmArgs can only be applied to a fork, forking instead")
+            return false
+        }
+        return true
     }
 
-    private static boolean changeFileLengthGreaterThanLimit(FileCollection includedFiles) {
-        int total = 0;
-        for (File file : includedFiles) {
-            total += file.toString().length();
-            if (total > COMMANDLINE_LENGTH_LIMIT) {
-                return true
+    /**
+     * The system properties retrolambda is configured with, independent of how it is run.
+     */
+    private Map<String, String> retrolambdaProperties(RetrolambdaTool tool) {
+        Map<String, String> properties = new LinkedHashMap<>()
+        properties.put('retrolambda.inputDir', String.valueOf(inputDir))
+        properties.put('retrolambda.outputDir', String.valueOf(outputDir))
+        properties.put('retrolambda.bytecodeVersion', String.valueOf(bytecodeVersion))
+
+        // Versions that can read their arguments from files always do, since those are reused
+        // between runs and never hit the command line limit.
+        boolean supportIncludeFiles = tool.supportsIncludedFiles
+        if (supportIncludeFiles) {
+            File classpathFile = writeArgumentFile(argumentsDir, ".path", classpath)
+            properties.put('retrolambda.classpathFile', classpathFile.absolutePath)
+        } else {
+            properties.put('retrolambda.classpath', classpath.join(File.pathSeparator))
+        }
+
+        if (includedFiles != null) {
+            if (supportIncludeFiles) {
+                File includedFile = writeArgumentFile(argumentsDir, ".list", includedFiles)
+                properties.put('retrolambda.includedFilesFile', includedFile.absolutePath)
+            } else {
+                String included = includedFiles.join(File.pathSeparator)
+                properties.put('retrolambda.includedFiles', included)
+                logger.quiet("-Dretrolambda.includedFiles=$included")
             }
         }
-        return false
+
+        if (defaultMethods) {
+            properties.put('retrolambda.defaultMethods', 'true')
+        }
+
+        return properties
     }
 
-    private static VersionNumber retrolambdaVersion(Configuration retrolambdaConfig) {
-        retrolambdaConfig.resolve()
-        Dependency retrolambdaDep = retrolambdaConfig.dependencies.iterator().next()
-        if (!retrolambdaDep.version) {
-            // Don't know version
-            return null
+    /**
+     * Runs the given retrolambda execs in parallel, bounded by the number of processors. Failures
+     * are rethrown after all runs have finished. In process runs can't happen concurrently and
+     * must be submitted from the task's thread, so those are run one after another.
+     */
+    static void execAll(List<RetrolambdaExec> execs) {
+        if (execs.size() <= 1 || execs[0].inProcess) {
+            for (RetrolambdaExec exec : execs) {
+                exec.exec()
+            }
+            return
         }
-        return VersionNumber.parse(retrolambdaDep.version)
 
+        List<Runnable> runs = []
+        for (RetrolambdaExec exec : execs) {
+            runs.add({ exec.exec() } as Runnable)
+        }
+        runParallel(runs)
+    }
+
+    /**
+     * Runs the given runs in parallel, bounded by the number of processors. Failures are rethrown
+     * after all runs have finished.
+     */
+    private static void runParallel(List<Runnable> runs) {
+        int threads = Math.min(runs.size(), Runtime.runtime.availableProcessors())
+        ExecutorService executor = Executors.newFixedThreadPool(threads)
+        try {
+            List<Future<?>> results = []
+            for (Runnable run : runs) {
+                results.add(executor.submit(run))
+            }
+            Throwable failure = null
+            for (Future<?> result : results) {
+                try {
+                    result.get()
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.cause
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * Writes the files one per line to a file in the dir named by the hash of its contents. If the
+     * same list was written before, like the classpath on most runs, that file is reused instead.
+     */
+    @PackageScope
+    static File writeArgumentFile(File dir, String suffix, Iterable<File> files) {
+        StringBuilder contents = new StringBuilder()
+        for (File file : files) {
+            contents.append(file.toString()).append('\n')
+        }
+        String text = contents.toString()
+        File argumentFile = new File(dir, RetrolambdaClassCache.hash([text]) + suffix)
+        if (argumentFile.isFile()) {
+            argumentFile.setLastModified(System.currentTimeMillis())
+            return argumentFile
+        }
+        dir.mkdirs()
+        // Written next to it and moved into place, so parallel runs never see a partial file. An
+        // atomic move replaces a file another run wrote in the meantime, which has the same contents.
+        File tmp = File.createTempFile('args-', '.tmp', dir)
+        try {
+            tmp.setText(text, 'UTF-8')
+            Files.move(tmp.toPath(), argumentFile.toPath(), StandardCopyOption.ATOMIC_MOVE)
+        } catch (FileSystemException e) {
+            // Only happens on windows, which can't replace the file while a fork is reading it.
+            if (!argumentFile.isFile()) {
+                throw e
+            }
+        } finally {
+            tmp.delete()
+        }
+        return argumentFile
     }
 
-    private
-    static boolean requireVersion(VersionNumber retrolambdaVersion, String version, boolean fallback = false) {
-        if (retrolambdaVersion == null) {
-            // Don't know version, assume fallback
-            return fallback
+    /**
+     * Deletes all but the most recently used argument files in the dir. This must not run at the
+     * same time as the execs using the dir.
+     */
+    static void pruneArgumentFiles(File dir) {
+        File[] files = dir.listFiles()
+        if (files == null || files.length <= ARGUMENT_FILES_KEPT) {
+            return
+        }
+        List<File> sorted = files.toList()
+        Collections.sort(sorted, { File a, File b -> b.lastModified() <=> a.lastModified() } as Comparator<File>)
+        for (File file : sorted.subList(ARGUMENT_FILES_KEPT, sorted.size())) {
+            file.delete()
         }
-        def targetVersionNumber = VersionNumber.parse(version)
-        return retrolambdaVersion >= targetVersionNumber
     }
 }
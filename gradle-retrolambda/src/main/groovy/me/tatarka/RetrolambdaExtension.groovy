@@ -32,6 +32,18 @@ public class RetrolambdaExtension {
     List<String> jvmArgs = []
     boolean incremental = true
     boolean defaultMethods = false
+    boolean inProcess = false
+    boolean daemon = false
+    int daemonIdleTimeout = 30
+    String daemonMaxHeap = '1g'
+    boolean batch = false
+    int batchJvms = Runtime.runtime.availableProcessors()
+    int shards = 1
+    boolean fastStartup = false
+    // Null when it isn't set, so that android variants can still share a cache unless it's turned off.
+    Boolean classCache = null
+    int classCacheSize = 512
+    boolean desugar = false
     boolean isOnJava8 = JavaVersion.current().java8Compatible
 
     private Project project
@@ -64,8 +76,48 @@ public class RetrolambdaExtension {
         defaultMethods = value
     }
     
-    public boolean isIncremental() {
-        return incremental && !defaultMethods
+    public void inProcess(boolean value) {
+        inProcess = value
+    }
+
+    public void daemon(boolean value) {
+        daemon = value
+    }
+
+    public void daemonIdleTimeout(int minutes) {
+        daemonIdleTimeout = minutes
+    }
+
+    public void daemonMaxHeap(String value) {
+        daemonMaxHeap = value
+    }
+
+    public void batch(boolean value) {
+        batch = value
+    }
+
+    public void batchJvms(int count) {
+        batchJvms = count
+    }
+
+    public void shards(int count) {
+        shards = count
+    }
+
+    public void fastStartup(boolean value) {
+        fastStartup = value
+    }
+
+    public void classCache(boolean value) {
+        classCache = value
+    }
+
+    public void classCacheSize(int megabytes) {
+        classCacheSize = megabytes
+    }
+
+    public void desugar(boolean value) {
+        desugar = value
     }
 
     public void setBytecodeVersion(int v) {
@@ -139,7 +191,7 @@ public class RetrolambdaExtension {
     private String findJdk() {
         String jdk
         if (isOnJava8) {
-            jdk = findCurrentJdk()
+            jdk = RetrolambdaTool.currentJdk()
         } else {
             jdk = System.getenv("JAVA8_HOME")
         }
@@ -150,7 +202,7 @@ public class RetrolambdaExtension {
     private String findOldJdk() {
         String oldJdk
         if (!isOnJava8) {
-            oldJdk = findCurrentJdk()
+            oldJdk = RetrolambdaTool.currentJdk()
         } else {
             switch (bytecodeVersion) {
                 case 49: 
@@ -169,18 +221,4 @@ public class RetrolambdaExtension {
         project.logger.info("Retrolambda $project.path found oldJdk: $oldJdk")
         return oldJdk
     }
-
-    private static String findCurrentJdk() {
-        String javaHomeProp = System.properties.'java.home'
-        if (javaHomeProp) {
-            int jreIndex = javaHomeProp.lastIndexOf("${File.separator}jre")
-            if (jreIndex != -1) {
-                return javaHomeProp.substring(0, jreIndex)
-            } else {
-                return javaHomeProp
-            }
-        } else {
-            return System.getenv("JAVA_HOME")
-        }
-    }
 }
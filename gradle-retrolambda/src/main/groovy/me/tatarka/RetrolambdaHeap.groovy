@@ -0,0 +1,158 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+import java.lang.management.ManagementFactory
+import java.lang.management.OperatingSystemMXBean
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Sizes the heap of a forked retrolambda jvm, unless it's set in the jvm args.
+ * <p>
+ * The first run of an input dir is estimated from the number of classes and the size of the
+ * classpath. Each fork records its peak heap, and later runs of the same dir are sized from that.
+ * Either way the heap is kept to a share of the memory available, which is the container's limit
+ * when there is one, so parallel forks don't starve each other or the gradle daemon. A run that
+ * still runs out of memory is retried once with all of that share.
+ */
+@CompileStatic
+class RetrolambdaHeap {
+    private static final long MB = 1024 * 1024
+    private static final long MIN_HEAP = 64 * MB
+    private static final long BYTES_PER_CLASS = 32 * 1024
+    // Classes on the classpath are only loaded as they are needed.
+    private static final int CLASSPATH_FRACTION = 4
+    // How much of the available memory a single fork may take.
+    private static final int MEMORY_FRACTION = 4
+    private static final Object lock = new Object()
+
+    /**
+     * The jvm args to add for the given run. The serial collector suits a short-lived jvm that only
+     * does one thing, and doesn't start gc threads that compete with parallel tasks.
+     */
+    static List<String> jvmArgs(List<String> jvmArgs, File heapFile, File inputDir, int classes, Collection<File> classpath) {
+        return heapArgs(jvmArgs, Math.min(Math.max(estimate(heapFile, inputDir, classes, classpath), MIN_HEAP), maxHeap()))
+    }
+
+    /**
+     * The jvm args to run again with after a run with the given args ran out of memory, or null if
+     * it wouldn't get a bigger heap.
+     */
+    static List<String> retryJvmArgs(List<String> jvmArgs, List<String> failedArgs) {
+        List<String> args = heapArgs(jvmArgs, maxHeap())
+        return args.any { String arg -> arg.startsWith('-Xmx') } && args != failedArgs ? args : null
+    }
+
+    private static List<String> heapArgs(List<String> jvmArgs, long heap) {
+        List<String> args = []
+        if (!jvmArgs.any { String arg -> arg.startsWith('-Xmx') || arg.startsWith('-XX:MaxHeapSize') }) {
+            args.add("-Xmx${(heap + MB - 1).intdiv(MB)}m".toString())
+        }
+        if (!jvmArgs.any { String arg -> arg.startsWith('-XX:+Use') && arg.endsWith('GC') }) {
+            args.add('-XX:+UseSerialGC')
+        }
+        return args
+    }
+
+    private static long maxHeap() {
+        return Math.max(availableMemory().intdiv(MEMORY_FRACTION).longValue(), MIN_HEAP)
+    }
+
+    /**
+     * Records the peak heap of a run, as written by {@link RetrolambdaFork}.
+     */
+    static void record(File heapFile, File inputDir, int classes, long peak) {
+        synchronized (lock) {
+            Properties heaps = load(heapFile)
+            heaps.setProperty(key(inputDir), "$peak,$classes".toString())
+            heapFile.parentFile.mkdirs()
+            // Written next to it and moved into place, so a run in another build never sees a
+            // partial file.
+            File tmp = File.createTempFile('heap-', '.tmp', heapFile.parentFile)
+            try {
+                tmp.withOutputStream { OutputStream out -> heaps.store(out, null) }
+                Files.move(tmp.toPath(), heapFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } finally {
+                tmp.delete()
+            }
+        }
+    }
+
+    private static long estimate(File heapFile, File inputDir, int classes, Collection<File> classpath) {
+        String recorded = heapFile != null ? load(heapFile).getProperty(key(inputDir)) : null
+        if (recorded != null) {
+            String[] parts = recorded.split(',')
+            long peak = Long.parseLong(parts[0])
+            int recordedClasses = Math.max(1, Integer.parseInt(parts[1]))
+            // Some headroom over the last peak, and more if there are more classes than then.
+            return (long) (peak * 1.5d * Math.max(1.0d, classes / (double) recordedClasses))
+        }
+        long classpathSize = 0
+        for (File file : classpath) {
+            if (file.isFile()) {
+                classpathSize += file.length()
+            }
+        }
+        return MIN_HEAP + classes * BYTES_PER_CLASS + classpathSize.intdiv(CLASSPATH_FRACTION).longValue()
+    }
+
+    private static Properties load(File heapFile) {
+        Properties heaps = new Properties()
+        if (heapFile.isFile()) {
+            try {
+                heapFile.withInputStream { InputStream input -> heaps.load(input) }
+            } catch (IOException e) {
+                // Start over, it's only used for sizing.
+            }
+        }
+        return heaps
+    }
+
+    private static String key(File inputDir) {
+        return RetrolambdaClassCache.hash([inputDir.absolutePath])
+    }
+
+    /**
+     * The memory limit of the container this runs in, or else the physical memory of the machine.
+     */
+    private static long availableMemory() {
+        long memory = Long.MAX_VALUE
+        OperatingSystemMXBean os = ManagementFactory.operatingSystemMXBean
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            memory = ((com.sun.management.OperatingSystemMXBean) os).totalPhysicalMemorySize
+        }
+        // cgroup v2, then v1. A limit that isn't set reads as 'max' or a huge number.
+        for (String path : ['/sys/fs/cgroup/memory.max', '/sys/fs/cgroup/memory/memory.limit_in_bytes']) {
+            File file = new File(path)
+            if (file.isFile()) {
+                try {
+                    String text = file.getText('UTF-8').trim()
+                    if (text.isLong()) {
+                        memory = Math.min(memory, Long.parseLong(text))
+                    }
+                } catch (IOException e) {
+                    // Not readable, use what we have.
+                }
+                break
+            }
+        }
+        return memory
+    }
+}
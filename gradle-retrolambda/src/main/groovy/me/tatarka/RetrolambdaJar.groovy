@@ -0,0 +1,215 @@
+/**
+ Copyright 2016 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+import java.nio.file.Files
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
+/**
+ * Runs a jar through retrolambda. Retrolambda only reads directories, so the classes that are newer
+ * than the target bytecode version are extracted to be processed. Everything else is streamed
+ * straight from the input jar to the output jar.
+ * <p>
+ * The extracted classes can be split into several dirs so that a large jar is processed in
+ * parallel. They are split by {@link RetrolambdaShards}, the same way as the classes of an input
+ * dir, so what has to be run together stays together.
+ */
+@CompileStatic
+class RetrolambdaJar {
+    private static final int MAGIC = (int) 0xCAFEBABEL
+    // The same time gradle gives the entries of reproducible archives.
+    private static final long GENERATED_ENTRY_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).timeInMillis
+
+    final File inputJar
+    final File outputJar
+    private final File workDir
+    private final int bytecodeVersion
+    // Extracted entry name -> the index of the dir it was extracted to.
+    private final Map<String, Integer> extracted = new HashMap<>()
+    private final List<File> inputDirs = []
+
+    RetrolambdaJar(File inputJar, File outputJar, File workDir, int bytecodeVersion) {
+        this.inputJar = inputJar
+        this.outputJar = outputJar
+        this.workDir = workDir
+        this.bytecodeVersion = bytecodeVersion
+    }
+
+    /**
+     * Extracts the classes that need to go through retrolambda, split over at most the given number
+     * of dirs. Returns the dirs that ended up with any classes.
+     */
+    List<File> extract(int parts, boolean defaultMethods) {
+        if (workDir.exists()) {
+            workDir.deleteDir()
+        }
+        // Everything is extracted to the first dir, and then the other shards are moved out of it.
+        File firstDir = new File(workDir, 'in-0')
+        List<File> files = []
+        byte[] buffer = new byte[8192]
+        ZipInputStream input = new ZipInputStream(new BufferedInputStream(new FileInputStream(inputJar)))
+        try {
+            ZipEntry entry
+            while ((entry = input.nextEntry) != null) {
+                if (entry.directory || !entry.name.endsWith('.class') || extracted.containsKey(entry.name)) {
+                    continue
+                }
+                // Only the header is needed to know if it can be copied as is.
+                byte[] header = new byte[8]
+                int length = readFully(input, header)
+                if (length < header.length || !needsBackport(header)) {
+                    continue
+                }
+                extracted.put(entry.name, 0)
+                File file = new File(firstDir, entry.name)
+                files.add(file)
+                file.parentFile.mkdirs()
+                OutputStream output = new FileOutputStream(file)
+                try {
+                    output.write(header)
+                    int read
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read)
+                    }
+                } finally {
+                    output.close()
+                }
+            }
+        } finally {
+            input.close()
+        }
+        if (files.isEmpty()) {
+            return []
+        }
+
+        List<List<File>> shards = RetrolambdaShards.split(firstDir, files, parts, defaultMethods)
+        inputDirs.add(firstDir)
+        for (int i = 1; i < shards.size(); i++) {
+            File inputDir = new File(workDir, "in-$i")
+            inputDirs.add(inputDir)
+            for (File file : shards[i]) {
+                String name = firstDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/' as char)
+                File moved = new File(inputDir, name)
+                moved.parentFile.mkdirs()
+                Files.move(file.toPath(), moved.toPath())
+                extracted.put(name, i)
+            }
+        }
+        return new ArrayList<File>(inputDirs)
+    }
+
+    static File outputDirFor(File inputDir) {
+        return new File(inputDir.parentFile, inputDir.name.replaceFirst('^in-', 'out-'))
+    }
+
+    /**
+     * Writes the output jar, replacing the extracted classes with what retrolambda made of them and
+     * adding the lambda classes it generated.
+     */
+    void write() {
+        outputJar.parentFile.mkdirs()
+        Set<String> written = new HashSet<>()
+        byte[] buffer = new byte[8192]
+        ZipInputStream input = new ZipInputStream(new BufferedInputStream(new FileInputStream(inputJar)))
+        ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputJar)))
+        try {
+            ZipEntry entry
+            while ((entry = input.nextEntry) != null) {
+                if (!written.add(entry.name)) {
+                    continue
+                }
+                ZipEntry outEntry = new ZipEntry(entry.name)
+                outEntry.time = entry.time
+                output.putNextEntry(outEntry)
+                Integer part = extracted.get(entry.name)
+                if (part != null) {
+                    File file = new File(outputDirFor(inputDirs[part]), entry.name)
+                    InputStream processed = new FileInputStream(file)
+                    try {
+                        copy(processed, output, buffer)
+                    } finally {
+                        processed.close()
+                    }
+                } else if (!entry.directory) {
+                    copy(input, output, buffer)
+                }
+                output.closeEntry()
+            }
+
+            // Generated classes are added in order and with a fixed time, so the same input always
+            // gives the same jar.
+            Map<String, File> generated = new TreeMap<>()
+            for (File inputDir : inputDirs) {
+                File outputDir = outputDirFor(inputDir)
+                if (!outputDir.exists()) {
+                    continue
+                }
+                outputDir.eachFileRecurse { File file ->
+                    String name = outputDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/' as char)
+                    if (file.isFile() && !written.contains(name)) {
+                        generated.put(name, file)
+                    }
+                }
+            }
+            for (Map.Entry<String, File> generatedEntry : generated.entrySet()) {
+                ZipEntry outEntry = new ZipEntry(generatedEntry.key)
+                outEntry.time = GENERATED_ENTRY_TIME
+                output.putNextEntry(outEntry)
+                InputStream generatedInput = new FileInputStream(generatedEntry.value)
+                try {
+                    copy(generatedInput, output, buffer)
+                } finally {
+                    generatedInput.close()
+                }
+                output.closeEntry()
+            }
+        } finally {
+            input.close()
+            output.close()
+        }
+        workDir.deleteDir()
+    }
+
+    private boolean needsBackport(byte[] header) {
+        int magic = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF)
+        int majorVersion = ((header[6] & 0xFF) << 8) | (header[7] & 0xFF)
+        return magic == MAGIC && majorVersion > bytecodeVersion
+    }
+
+    private static int readFully(InputStream input, byte[] bytes) {
+        int total = 0
+        while (total < bytes.length) {
+            int read = input.read(bytes, total, bytes.length - total)
+            if (read == -1) {
+                break
+            }
+            total += read
+        }
+        return total
+    }
+
+    private static void copy(InputStream input, OutputStream output, byte[] buffer) {
+        int read
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read)
+        }
+    }
+}
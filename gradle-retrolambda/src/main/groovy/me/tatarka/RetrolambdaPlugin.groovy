@@ -17,6 +17,7 @@
 package me.tatarka
 
 import groovy.transform.CompileStatic
+import org.gradle.api.DefaultTask
 import org.gradle.api.JavaVersion
 import org.gradle.api.Plugin
 import org.gradle.api.Project
@@ -43,9 +44,14 @@ public class RetrolambdaPlugin implements Plugin<Project> {
             dependencies.add(project.dependencies.create(retrolambdaCompile))
         }
 
-        project.task('compileRetrolambda', dependsOn: project.tasks.matching { Task task ->
-            !task.name.equals('compileRetrolambda') && task.name.startsWith('compileRetrolambda')
-        }) { Task task ->
+        // Reports are written per task, so the last build's are cleared first. Otherwise the report of
+        // a task that is up-to-date or from the cache this time would look like it just ran.
+        project.gradle.taskGraph.whenReady {
+            project.file("$project.buildDir/reports/retrolambda").deleteDir()
+        }
+
+        // The java and groovy plugins add their tasks to it as they register them.
+        RetrolambdaTasks.register(project, 'compileRetrolambda', DefaultTask) { DefaultTask task ->
             task.description = "Converts all java 8 class files to java 6 or 7"
             task.group = "build"
         }
@@ -75,7 +81,9 @@ public class RetrolambdaPlugin implements Plugin<Project> {
         }
 
         project.plugins.withType(ApplicationPlugin) {
-            project.tasks.findByName('run').dependsOn('compileRetrolambda')
+            RetrolambdaTasks.configure(project, 'run', Task) { Task run ->
+                run.dependsOn('compileRetrolambda')
+            }
         }
     }
 
@@ -85,7 +93,7 @@ public class RetrolambdaPlugin implements Plugin<Project> {
      * @return
      */
     static boolean checkIfExecutableExists(String file) {
-        new File(file).exists() || new File(file + '.exe').exists()
+        return RetrolambdaTool.executableExists(file)
     }
 
     static int javaVersionToBytecode(JavaVersion v) {
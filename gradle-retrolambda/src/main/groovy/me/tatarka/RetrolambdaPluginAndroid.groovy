@@ -18,6 +18,7 @@ package me.tatarka
 
 import com.android.build.gradle.AppPlugin
 import com.android.build.gradle.AppExtension
+import com.android.build.gradle.BaseExtension
 import com.android.build.gradle.LibraryExtension
 import com.android.build.gradle.LibraryPlugin
 import com.android.build.gradle.TestExtension
@@ -30,18 +31,29 @@ import groovy.transform.CompileStatic
 import org.gradle.api.Plugin
 import org.gradle.api.Project
 import org.gradle.api.ProjectConfigurationException
+import org.gradle.api.Task
 import org.gradle.api.tasks.compile.JavaCompile
 import org.gradle.api.tasks.testing.Test
+import org.gradle.util.VersionNumber
 
 import static me.tatarka.RetrolambdaPlugin.checkIfExecutableExists
 
 @CompileStatic
 class RetrolambdaPluginAndroid implements Plugin<Project> {
+    private static final VersionNumber DESUGAR = VersionNumber.parse('3.0.0')
+    private static final boolean CAN_DESUGAR = findCanDesugar()
+
     @Override
     void apply(Project project) {
         def retrolambda = project.extensions.getByType(RetrolambdaExtension)
         def transform = new RetrolambdaTransform(project, retrolambda)
 
+        project.afterEvaluate {
+            if (retrolambda.desugar) {
+                checkDesugar(project)
+            }
+        }
+
         if (project.plugins.hasPlugin(LibraryPlugin)) {
             def android = project.extensions.getByType(LibraryExtension)
             android.registerTransform(transform)
@@ -102,13 +114,45 @@ class RetrolambdaPluginAndroid implements Plugin<Project> {
         }
     }
 
-    private static configureCompileJavaTask(Project project, BaseVariant variant, RetrolambdaTransform transform) {
-        variant.javaCompile.doFirst {
-            def retrolambda = project.extensions.getByType(RetrolambdaExtension)
-            def rt = "$retrolambda.jdk/jre/lib/rt.jar"
+    /**
+     * Whether the android plugin backports java 8 itself when it dexes the classes, which it does
+     * since 3.0.0.
+     */
+    static boolean canDesugar() {
+        return CAN_DESUGAR
+    }
 
-            variant.javaCompile.classpath = variant.javaCompile.classpath + project.files(rt)
-            ensureCompileOnJava8(retrolambda, variant.javaCompile)
+    private static boolean findCanDesugar() {
+        try {
+            // Read reflectively, the constant would be inlined from the version this is compiled
+            // against.
+            def version = (String) Class.forName('com.android.builder.model.Version', false, AppPlugin.classLoader)
+                    .getField('ANDROID_GRADLE_PLUGIN_VERSION').get(null)
+            return VersionNumber.parse(version).major >= DESUGAR.major
+        } catch (ReflectiveOperationException e) {
+            // Don't know version
+            return false
+        }
+    }
+
+    private static checkDesugar(Project project) {
+        if (!canDesugar()) {
+            project.logger.warn("retrolambda.desugar requires android gradle plugin ${DESUGAR}+, running retrolambda instead.")
+            return
+        }
+        def android = project.extensions.getByType(BaseExtension)
+        if (!android.compileOptions.targetCompatibility.java8Compatible) {
+            throw new ProjectConfigurationException("retrolambda.desugar requires android.compileOptions to target java 8", (Throwable) null)
+        }
+    }
+
+    private static configureCompileJavaTask(Project project, BaseVariant variant, RetrolambdaTransform transform) {
+        def settings = RetrolambdaSettings.from(project)
+        def rt = project.files("$settings.jdk/jre/lib/rt.jar")
+        variant.javaCompile.doFirst { Task task ->
+            JavaCompile javaCompile = (JavaCompile) task
+            javaCompile.classpath = javaCompile.classpath + rt
+            ensureCompileOnJava8(settings, javaCompile)
         }
 
         transform.putVariant(variant)
@@ -116,32 +160,31 @@ class RetrolambdaPluginAndroid implements Plugin<Project> {
 
     private
     static configureUnitTestTask(Project project, String variant, JavaCompile javaCompileTask) {
-        javaCompileTask.doFirst {
-            def retrolambda = project.extensions.getByType(RetrolambdaExtension)
-            def rt = "$retrolambda.jdk/jre/lib/rt.jar"
-
+        def settings = RetrolambdaSettings.from(project)
+        def rt = project.files("$settings.jdk/jre/lib/rt.jar")
+        javaCompileTask.doFirst { Task task ->
+            JavaCompile javaCompile = (JavaCompile) task
             // We need to add the rt to the classpath to support lambdas in the tests themselves
-            javaCompileTask.classpath = javaCompileTask.classpath + project.files(rt)
+            javaCompile.classpath = javaCompile.classpath + rt
 
-            ensureCompileOnJava8(retrolambda, javaCompileTask)
+            ensureCompileOnJava8(settings, javaCompile)
         }
 
         Test runTask = (Test) project.tasks.findByName("test${RetrolambdaUtil.capitalize(variant)}UnitTest")
         if (runTask) {
-            runTask.doFirst {
-                def retrolambda = project.extensions.getByType(RetrolambdaExtension)
-                ensureRunOnJava8(retrolambda, runTask)
+            runTask.doFirst { Task task ->
+                ensureRunOnJava8(settings, (Test) task)
             }
         }
     }
 
-    private static ensureCompileOnJava8(RetrolambdaExtension retrolambda, JavaCompile javaCompile) {
+    private static ensureCompileOnJava8(RetrolambdaSettings settings, JavaCompile javaCompile) {
         javaCompile.sourceCompatibility = "1.8"
         javaCompile.targetCompatibility = "1.8"
 
-        if (!retrolambda.onJava8) {
+        if (!settings.onJava8) {
             // Set JDK 8 for the compiler task
-            def javac = "${retrolambda.tryGetJdk()}/bin/javac"
+            def javac = "${settings.tryGetJdk()}/bin/javac"
             if (!checkIfExecutableExists(javac)) {
                 throw new ProjectConfigurationException("Cannot find executable: $javac", (Throwable) null)
             }
@@ -150,9 +193,9 @@ class RetrolambdaPluginAndroid implements Plugin<Project> {
         }
     }
 
-    private static ensureRunOnJava8(RetrolambdaExtension retrolambda, Test test) {
-        if (!retrolambda.onJava8) {
-            def java = "${retrolambda.tryGetJdk()}/bin/java"
+    private static ensureRunOnJava8(RetrolambdaSettings settings, Test test) {
+        if (!settings.onJava8) {
+            def java = "${settings.tryGetJdk()}/bin/java"
             if (!checkIfExecutableExists(java)) {
                 throw new ProjectConfigurationException("Cannot find executable: $java", (Throwable) null)
             }
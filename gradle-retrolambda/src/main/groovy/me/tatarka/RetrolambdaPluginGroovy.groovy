@@ -29,6 +29,7 @@ public class RetrolambdaPluginGroovy implements Plugin<Project> {
     void apply(Project project) {
         project.afterEvaluate {
             def retrolambda = project.extensions.getByType(RetrolambdaExtension)
+            def settings = RetrolambdaSettings.from(project)
 
             project.sourceSets.all { SourceSet set ->
                 if (project.retrolambda.isIncluded(set.name)) {
@@ -39,46 +40,58 @@ public class RetrolambdaPluginGroovy implements Plugin<Project> {
 
                     /* No compileJavaTaskName present, so re-use any modifications applied to compileJava and remap to Groovy */
                     def compileGroovyTaskName = set.compileJavaTaskName.replace(/Java/, /Groovy/)
-                    def compileGroovyTask = project.tasks.getByName(compileGroovyTaskName)
 
-                    compileGroovyTask.destinationDir = newOutputDir
-                    def retrolambdaTask = project.task(taskName, dependsOn: compileGroovyTask, type: RetrolambdaTask) {
-                        inputDir = newOutputDir
-                        outputDir = oldOutputDir
-                        classpath = set.compileClasspath + project.files(newOutputDir)
-                        javaVersion = retrolambda.javaVersion
-                        jvmArgs = retrolambda.jvmArgs
-                    }
+                    RetrolambdaTasks.configure(project, compileGroovyTaskName, Task) { compileGroovyTask ->
+                        compileGroovyTask.destinationDir = newOutputDir
 
-                    // enable retrolambdaTask dynamically, based on up-to-date source set before running 
-                    project.gradle.taskGraph.beforeTask { Task task ->
-                        if (task == retrolambdaTask) {
-                            retrolambdaTask.setEnabled(!set.allJava.isEmpty())
+                        if (!settings.onJava8) {
+                            // Set JDK 8 for compiler task
+                            compileGroovyTask.doFirst {
+                                it.options.fork = true
+                                it.options.forkOptions.executable = "${settings.tryGetJdk()}/bin/javac"
+                            }
                         }
                     }
 
-                    project.tasks.findByName(set.classesTaskName).dependsOn(retrolambdaTask)
+                    def retrolambdaTask = RetrolambdaTasks.register(project, taskName, RetrolambdaTask) { RetrolambdaTask t ->
+                        t.dependsOn(compileGroovyTaskName)
+                        t.inputDir = newOutputDir
+                        t.outputDir = oldOutputDir
+                        t.stateDir = project.file("$project.buildDir/retrolambda-state/$taskName")
+                        t.classpath = set.compileClasspath
+                        t.javaVersion = retrolambda.javaVersion
+                        t.jvmArgs = retrolambda.jvmArgs
+                        t.defaultMethods = retrolambda.defaultMethods
+                        t.retrolambdaClasspath = project.configurations.getByName('retrolambdaConfig')
+                        t.settings = settings
+                        t.reportDir = project.file("$project.buildDir/reports/retrolambda")
+                        t.workers = RetrolambdaExec.createWorkers(project, settings)
+                        // Checked when the task is about to run, so sources are only looked at then.
+                        def sources = set.allJava
+                        t.onlyIf { !sources.isEmpty() }
+                    }
 
-                    if (!project.retrolambda.onJava8) {
-                        // Set JDK 8 for compiler task
-                        compileGroovyTask.doFirst {
-                            it.options.fork = true
-                            it.options.forkOptions.executable = "${retrolambda.tryGetJdk()}/bin/javac"
-                        }
+                    RetrolambdaTasks.configure(project, set.classesTaskName, Task) { classes ->
+                        classes.dependsOn(retrolambdaTask)
+                    }
+                    RetrolambdaTasks.configure(project, 'compileRetrolambda', Task) { compileRetrolambda ->
+                        compileRetrolambda.dependsOn(retrolambdaTask)
                     }
                 }
             }
 
-            project.tasks.getByName("test").doFirst {
-                if (retrolambda.onJava8) {
-                    //Run tests on java6/7 if the property is defined.
-                    String oldJdkPath = retrolambda.oldJdk
-                    if (oldJdkPath != null) {
-                        def oldJava = "$oldJdkPath/bin/java"
-                        if (!checkIfExecutableExists(oldJava)) {
-                            throw new ProjectConfigurationException("Cannot find executable: $oldJava", null)
+            RetrolambdaTasks.configure(project, 'test', Task) { test ->
+                String oldJdkPath = retrolambda.oldJdk
+                test.doFirst {
+                    if (settings.onJava8) {
+                        //Run tests on java6/7 if the property is defined.
+                        if (oldJdkPath != null) {
+                            def oldJava = "$oldJdkPath/bin/java"
+                            if (!checkIfExecutableExists(oldJava)) {
+                                throw new ProjectConfigurationException("Cannot find executable: $oldJava", null)
+                            }
+                            it.executable oldJava
                         }
-                        task.executable oldJava
                     }
                 }
             }
@@ -34,6 +34,7 @@ public class RetrolambdaPluginJava implements Plugin<Project> {
     void apply(Project project) {
         project.afterEvaluate {
             def retrolambda = project.extensions.getByType(RetrolambdaExtension)
+            def settings = RetrolambdaSettings.from(project)
             def javaPlugin = project.convention.getPlugin(JavaPluginConvention)
 
             javaPlugin.sourceSets.all { SourceSet set ->
@@ -43,48 +44,58 @@ public class RetrolambdaPluginJava implements Plugin<Project> {
                     def oldOutputDir = RetrolambdaUtil.javaOutputDir(set)
                     def newOutputDir = project.file("$project.buildDir/retrolambda/$set.name")
 
-                    def compileJavaTask = project.tasks.getByName(set.compileJavaTaskName) as JavaCompile
-                    compileJavaTask.destinationDir = newOutputDir
+                    RetrolambdaTasks.configure(project, set.compileJavaTaskName, JavaCompile) { JavaCompile compileJavaTask ->
+                        compileJavaTask.destinationDir = newOutputDir
 
-                    def retrolambdaTask = project.task(taskName, dependsOn: compileJavaTask, type: RetrolambdaTask) { Task task ->
-                        RetrolambdaTask t = task as RetrolambdaTask
+                        if (!settings.onJava8) {
+                            // Set JDK 8 for compiler task
+                            compileJavaTask.doFirst { Task task ->
+                                JavaCompile compile = (JavaCompile) task
+                                compile.options.fork = true
+                                compile.options.forkOptions.executable = "${settings.tryGetJdk()}/bin/javac"
+                            }
+                        }
+                    }
+
+                    def retrolambdaTask = RetrolambdaTasks.register(project, taskName, RetrolambdaTask) { RetrolambdaTask t ->
+                        t.dependsOn(set.compileJavaTaskName)
                         t.inputDir = newOutputDir
                         t.outputDir = oldOutputDir
-                        t.classpath = set.compileClasspath + project.files(newOutputDir)
+                        t.stateDir = project.file("$project.buildDir/retrolambda-state/$taskName")
+                        t.classpath = set.compileClasspath
                         t.javaVersion = retrolambda.javaVersion
                         t.jvmArgs = retrolambda.jvmArgs
-                        t.enabled = !set.allJava.isEmpty()
+                        t.defaultMethods = retrolambda.defaultMethods
+                        t.retrolambdaClasspath = project.configurations.getByName('retrolambdaConfig')
+                        t.settings = settings
+                        t.reportDir = project.file("$project.buildDir/reports/retrolambda")
+                        t.workers = RetrolambdaExec.createWorkers(project, settings)
+                        // Checked when the task is about to run, so sources are only looked at then.
+                        def sources = set.allJava
+                        t.onlyIf { !sources.isEmpty() }
                     }
 
-                    // enable retrolambdaTask dynamically, based on up-to-date source set before running 
-                    project.gradle.taskGraph.beforeTask { Task task ->
-                        if (task == retrolambdaTask) {
-                            retrolambdaTask.setEnabled(!set.allJava.isEmpty())
-                        }
+                    RetrolambdaTasks.configure(project, set.classesTaskName, Task) { Task classes ->
+                        classes.dependsOn(retrolambdaTask)
                     }
-
-                    project.tasks.findByName(set.classesTaskName).dependsOn(retrolambdaTask)
-
-                    if (!retrolambda.onJava8) {
-                        // Set JDK 8 for compiler task
-                        compileJavaTask.doFirst {
-                            compileJavaTask.options.fork = true
-                            compileJavaTask.options.forkOptions.executable = "${retrolambda.tryGetJdk()}/bin/javac"
-                        }
+                    RetrolambdaTasks.configure(project, 'compileRetrolambda', Task) { Task compileRetrolambda ->
+                        compileRetrolambda.dependsOn(retrolambdaTask)
                     }
                 }
             }
 
-            project.tasks.getByName("test").doFirst { Test task ->
-                if (retrolambda.onJava8) {
-                    //Run tests on java6/7 if the property is defined.
-                    String oldJdkPath = retrolambda.oldJdk
-                    if (oldJdkPath != null) {
-                        def oldJava = "$oldJdkPath/bin/java"
-                        if (!checkIfExecutableExists(oldJava)) {
-                            throw new ProjectConfigurationException("Cannot find executable: $oldJava", (Throwable) null)
+            RetrolambdaTasks.configure(project, 'test', Test) { Test test ->
+                String oldJdkPath = retrolambda.oldJdk
+                test.doFirst { Task task ->
+                    if (settings.onJava8) {
+                        //Run tests on java6/7 if the property is defined.
+                        if (oldJdkPath != null) {
+                            def oldJava = "$oldJdkPath/bin/java"
+                            if (!checkIfExecutableExists(oldJava)) {
+                                throw new ProjectConfigurationException("Cannot find executable: $oldJava", (Throwable) null)
+                            }
+                            ((Test) task).executable oldJava
                         }
-                        task.executable oldJava
                     }
                 }
             }
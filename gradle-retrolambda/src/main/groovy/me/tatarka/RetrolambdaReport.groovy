@@ -0,0 +1,130 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.json.JsonOutput
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Phase timings and counts for one run of a retrolambda task or transform, written to
+ * {@code build/reports/retrolambda/<task>.json} when it finishes. The reports of the last build are
+ * cleared when a build starts, see {@link RetrolambdaPlugin}.
+ * <p>
+ * The parts of a transform run in parallel, so its phase times are the sum over those parts and
+ * can add up to more than its duration.
+ */
+@CompileStatic
+class RetrolambdaReport {
+    private static final long[] HISTOGRAM_BOUNDS = [1, 10, 100, 1000] as long[]
+    private static final int SLOWEST_CLASSES = 10
+
+    final String name
+    boolean incremental
+    private final long start = System.nanoTime()
+    private long duration
+    private final Map<String, Long> phases = new LinkedHashMap<>()
+    private final Map<String, Long> counts = new LinkedHashMap<>()
+    // Time per class, only known when retrolambda is forked. See TimingOutputStream.
+    private final Map<String, Long> classTimes = new HashMap<>()
+
+    RetrolambdaReport(String name) {
+        this.name = name
+    }
+
+    /**
+     * Adds the time since the given {@link System#nanoTime()} to the phase.
+     */
+    synchronized void phase(String phase, long startNanos) {
+        Long time = phases.get(phase)
+        phases.put(phase, (time ?: 0L) + System.nanoTime() - startNanos)
+    }
+
+    synchronized void count(String counter, long amount) {
+        Long count = counts.get(counter)
+        counts.put(counter, (count ?: 0L) + amount)
+    }
+
+    synchronized void classTime(String className, long nanos) {
+        Long time = classTimes.get(className)
+        classTimes.put(className, (time ?: 0L) + nanos)
+    }
+
+    /**
+     * Marks the run as done and writes it to {@code <task>.json} in the report dir, replacing the
+     * previous run of the same task.
+     */
+    void finish(File reportDir) {
+        duration = System.nanoTime() - start
+        // The dir is already per project, so only the task name is used.
+        File reportFile = new File(reportDir, "${name.substring(name.lastIndexOf(':') + 1)}.json")
+        reportFile.parentFile.mkdirs()
+        reportFile.setText(JsonOutput.prettyPrint(JsonOutput.toJson(toMap())), 'UTF-8')
+    }
+
+    private synchronized Map<String, Object> toMap() {
+        Map<String, Object> phasesMs = new LinkedHashMap<>()
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            phasesMs.put(entry.key, millis(entry.value))
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>()
+        result.put('name', name)
+        result.put('incremental', incremental)
+        result.put('durationMs', millis(duration))
+        result.put('phasesMs', phasesMs)
+        result.put('counts', counts)
+        if (!classTimes.isEmpty()) {
+            result.put('classTimeHistogramMs', histogram())
+            result.put('slowestClasses', slowestClasses())
+        }
+        return result
+    }
+
+    private Map<String, Object> histogram() {
+        long[] buckets = new long[HISTOGRAM_BOUNDS.length + 1]
+        for (Long time : classTimes.values()) {
+            long ms = millis(time)
+            int bucket = 0
+            while (bucket < HISTOGRAM_BOUNDS.length && ms >= HISTOGRAM_BOUNDS[bucket]) {
+                bucket++
+            }
+            buckets[bucket]++
+        }
+        Map<String, Object> result = new LinkedHashMap<>()
+        for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+            result.put("<${HISTOGRAM_BOUNDS[i]}".toString(), buckets[i])
+        }
+        result.put(">=${HISTOGRAM_BOUNDS[HISTOGRAM_BOUNDS.length - 1]}".toString(), buckets[HISTOGRAM_BOUNDS.length])
+        return result
+    }
+
+    private List<Object> slowestClasses() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(classTimes.entrySet())
+        Collections.sort(entries, { Map.Entry<String, Long> a, Map.Entry<String, Long> b -> b.value <=> a.value } as Comparator<Map.Entry<String, Long>>)
+        List<Object> result = []
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(SLOWEST_CLASSES, entries.size()))) {
+            result.add([className: entry.key, ms: millis(entry.value)])
+        }
+        return result
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos)
+    }
+}
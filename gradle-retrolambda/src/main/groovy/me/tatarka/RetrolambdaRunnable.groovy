@@ -0,0 +1,90 @@
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+import javax.inject.Inject
+import java.lang.reflect.InvocationTargetException
+
+/**
+ * Runs retrolambda in the current jvm. Retrolambda is loaded in an isolated classloader built from
+ * the {@code retrolambdaConfig} files. The classloaders are cached statically so they live as long
+ * as the plugin's classloader, which gradle keeps between builds in the same daemon.
+ */
+@CompileStatic
+class RetrolambdaRunnable implements Runnable {
+    private static final int MAX_CACHED_CLASSLOADERS = 4
+    // String literals are interned for the whole jvm, so this is the same object for every copy
+    // of this class no matter which classloader loaded it.
+    private static final String JVM_LOCK = 'me.tatarka.retrolambda.RetrolambdaRunnable.lock'
+
+    private static final Map<String, URLClassLoader> classLoaders = new LinkedHashMap<String, URLClassLoader>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, URLClassLoader> eldest) {
+            if (size() > MAX_CACHED_CLASSLOADERS) {
+                eldest.value.close()
+                return true
+            }
+            return false
+        }
+    }
+
+    private final List<File> retrolambdaClasspath
+    private final Properties properties
+
+    @Inject
+    RetrolambdaRunnable(List<File> retrolambdaClasspath, Properties properties) {
+        this.retrolambdaClasspath = retrolambdaClasspath
+        this.properties = properties
+    }
+
+    @Override
+    void run() {
+        // Retrolambda swaps out a static field in the jdk's lambda metafactory while it runs, so
+        // only one run can be going on in the jvm at a time. The plugin can be loaded more than
+        // once in a daemon, like by builds of different projects or with --parallel, so a lock of
+        // this class alone isn't enough.
+        synchronized (JVM_LOCK) {
+            ClassLoader classLoader = classLoader(retrolambdaClasspath)
+            Thread thread = Thread.currentThread()
+            ClassLoader contextClassLoader = thread.contextClassLoader
+            // Retrolambda loads classes through the context classloader, which would otherwise be
+            // the worker's and not see them.
+            thread.contextClassLoader = classLoader
+            try {
+                Class<?> retrolambda = Class.forName('net.orfjackal.retrolambda.Retrolambda', true, classLoader)
+                retrolambda.getMethod('run', Properties).invoke(null, properties)
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException("Retrolambda failed on ${properties.getProperty('retrolambda.inputDir')}", e.cause)
+            } finally {
+                thread.contextClassLoader = contextClassLoader
+            }
+        }
+    }
+
+    private static ClassLoader classLoader(List<File> classpath) {
+        String key = classpathKey(classpath)
+        URLClassLoader classLoader = classLoaders.get(key)
+        if (classLoader == null) {
+            URL[] urls = new URL[classpath.size()]
+            for (int i = 0; i < urls.length; i++) {
+                urls[i] = classpath.get(i).toURI().toURL()
+            }
+            // A null parent so retrolambda's bundled asm can't clash with the one gradle ships.
+            classLoader = new URLClassLoader(urls, (ClassLoader) null)
+            classLoaders.put(key, classLoader)
+        }
+        return classLoader
+    }
+
+    /**
+     * Identifies a classpath by its files' paths, sizes and timestamps, so that a replaced
+     * retrolambda jar gets a new classloader.
+     */
+    private static String classpathKey(List<File> classpath) {
+        StringBuilder key = new StringBuilder()
+        for (File file : classpath) {
+            key.append(file.absolutePath).append(':').append(file.length()).append(':').append(file.lastModified()).append(File.pathSeparator)
+        }
+        return key.toString()
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+import org.gradle.api.Project
+import org.gradle.api.ProjectConfigurationException
+
+/**
+ * The parts of the {@link RetrolambdaExtension} and the build that decide how retrolambda is run,
+ * read when a task is configured. Tasks keep this instead of looking up the extension when they
+ * run, so running them doesn't need the project and their state can be serialized.
+ */
+@CompileStatic
+class RetrolambdaSettings implements Serializable {
+    private static final long serialVersionUID = 1L
+
+    boolean incremental
+    boolean inProcess
+    boolean daemon
+    int daemonIdleTimeout
+    String daemonMaxHeap
+    boolean batch
+    int batchJvms
+    int shards
+    boolean fastStartup
+    boolean classCache
+    int classCacheSize
+    boolean onJava8
+    /** The jdk 8 to run retrolambda with, or null if none was found. */
+    String jdk
+    File gradleUserHomeDir
+
+    static RetrolambdaSettings from(Project project) {
+        RetrolambdaExtension retrolambda = project.extensions.getByType(RetrolambdaExtension)
+        RetrolambdaSettings settings = new RetrolambdaSettings()
+        settings.incremental = retrolambda.incremental
+        settings.inProcess = retrolambda.inProcess
+        settings.daemon = retrolambda.daemon
+        settings.daemonIdleTimeout = retrolambda.daemonIdleTimeout
+        settings.daemonMaxHeap = retrolambda.daemonMaxHeap
+        settings.batch = retrolambda.batch
+        settings.batchJvms = retrolambda.batchJvms
+        settings.shards = retrolambda.shards
+        settings.fastStartup = retrolambda.fastStartup
+        settings.classCache = retrolambda.classCache == Boolean.TRUE
+        settings.classCacheSize = retrolambda.classCacheSize
+        settings.onJava8 = retrolambda.onJava8
+        settings.jdk = retrolambda.jdk
+        settings.gradleUserHomeDir = project.gradle.gradleUserHomeDir
+        return settings
+    }
+
+    String tryGetJdk() {
+        if (jdk == null) {
+            throw new ProjectConfigurationException("When running gradle with java 5, 6 or 7, you must set the path to jdk8, either with property retrolambda.jdk or environment variable JAVA8_HOME", (Throwable) null)
+        }
+        return jdk
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+/**
+ * Splits the classes of an input dir so that several retrolambda runs can work on it at once.
+ * <p>
+ * Classes are kept together by package, so a class, its nested classes and their lambdas always
+ * end up in the same run. Lambda classes are numbered per class, so their names are the same as in
+ * a single run. With default methods a class has to be run along with its supertypes and the
+ * interfaces it references, and an interface's companion class must only be written once, so
+ * packages connected that way are kept together too.
+ */
+@CompileStatic
+class RetrolambdaShards {
+    // Below this many classes per shard, starting another run costs more than it saves.
+    static final int MIN_SHARD_SIZE = 500
+
+    /**
+     * Splits the files into at most the given number of shards of roughly the same size. Returns a
+     * single shard if there aren't enough files to be worth it.
+     */
+    static List<List<File>> split(File inputDir, Collection<File> files, int count, boolean defaultMethods) {
+        int shards = Math.min(count, files.size().intdiv(MIN_SHARD_SIZE).intValue())
+        if (shards <= 1) {
+            return [new ArrayList<File>(files)]
+        }
+
+        // Packages in a sorted map, so the same input always gives the same shards.
+        Map<String, List<File>> packages = new TreeMap<>()
+        for (File file : files) {
+            String path = inputDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/' as char)
+            int index = path.lastIndexOf('/')
+            String pkg = index == -1 ? '' : path.substring(0, index)
+            List<File> list = packages.get(pkg)
+            if (list == null) {
+                list = []
+                packages.put(pkg, list)
+            }
+            list.add(file)
+        }
+
+        Map<String, String> groups = new HashMap<>()
+        for (String pkg : packages.keySet()) {
+            groups.put(pkg, pkg)
+        }
+        if (defaultMethods) {
+            Map<String, String> packageOf = new HashMap<>()
+            Map<String, ClassFileInfo> infos = new HashMap<>()
+            for (Map.Entry<String, List<File>> entry : packages.entrySet()) {
+                for (File file : entry.value) {
+                    if (file.name.endsWith('.class')) {
+                        ClassFileInfo info = ClassFileInfo.read(file)
+                        infos.put(info.name, info)
+                        packageOf.put(info.name, entry.key)
+                    }
+                }
+            }
+            for (ClassFileInfo info : infos.values()) {
+                String pkg = packageOf.get(info.name)
+                for (String other : info.supertypes) {
+                    if (packageOf.containsKey(other)) union(groups, pkg, packageOf.get(other))
+                }
+                for (String other : info.references) {
+                    ClassFileInfo referenced = infos.get(other)
+                    if (referenced != null && referenced.isInterface) union(groups, pkg, packageOf.get(other))
+                }
+            }
+        }
+
+        Map<String, List<File>> grouped = new TreeMap<>()
+        for (Map.Entry<String, List<File>> entry : packages.entrySet()) {
+            String group = find(groups, entry.key)
+            List<File> list = grouped.get(group)
+            if (list == null) {
+                list = []
+                grouped.put(group, list)
+            }
+            list.addAll(entry.value)
+        }
+
+        // The biggest groups first, each to whichever shard has the fewest files so far.
+        List<List<File>> sorted = new ArrayList<>(grouped.values())
+        Collections.sort(sorted, { List<File> a, List<File> b -> b.size() <=> a.size() } as Comparator<List<File>>)
+        List<List<File>> result = []
+        for (int i = 0; i < shards; i++) {
+            result.add(new ArrayList<File>())
+        }
+        for (List<File> group : sorted) {
+            List<File> smallest = result[0]
+            for (List<File> shard : result) {
+                if (shard.size() < smallest.size()) smallest = shard
+            }
+            smallest.addAll(group)
+        }
+        result.removeAll { List<File> shard -> shard.isEmpty() }
+        return result
+    }
+
+    private static String find(Map<String, String> groups, String pkg) {
+        String root = pkg
+        while (groups.get(root) != root) {
+            root = groups.get(root)
+        }
+        // Point everything on the way straight at the root, so the next lookup is quick.
+        while (pkg != root) {
+            String next = groups.get(pkg)
+            groups.put(pkg, root)
+            pkg = next
+        }
+        return root
+    }
+
+    private static void union(Map<String, String> groups, String a, String b) {
+        String rootA = find(groups, a)
+        String rootB = find(groups, b)
+        if (rootA != rootB) {
+            // The smaller name wins, so groups don't depend on the order classes were read in.
+            if (rootA < rootB) {
+                groups.put(rootB, rootA)
+            } else {
+                groups.put(rootA, rootB)
+            }
+        }
+    }
+}
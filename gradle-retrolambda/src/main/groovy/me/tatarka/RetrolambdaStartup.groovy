@@ -0,0 +1,127 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+import java.nio.file.FileSystemException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Jvm args that make a forked retrolambda start faster, for the {@code fastStartup} option. Small
+ * runs spend most of their time starting the jvm and loading retrolambda and asm.
+ * <p>
+ * On jdk 13+ the classes loaded by the first fork are dumped to a class data sharing archive,
+ * which later forks map in instead of loading them again. The archive is kept in the gradle user
+ * home, keyed by the contents of the fork's classpath and the jdk, since it can only be used with
+ * exactly those. It's dumped to a temp file and moved into place once the fork succeeded, so
+ * concurrent forks never use a partial one. Older jdks can't dump the classes of a classpath
+ * without a separate run, so they only get the compiler settings.
+ */
+@CompileStatic
+class RetrolambdaStartup {
+    // Dynamic archives were added in jdk 13.
+    private static final int ARCHIVE_JDK = 13
+    // Up to this many classes, a run is too short for the optimizing compiler to pay off.
+    private static final int SMALL_RUN = 1000
+    private static final ConcurrentMap<String, String> JAR_HASHES = new ConcurrentHashMap<>()
+
+    final List<String> jvmArgs = []
+    private boolean smallRun
+    private File archive
+    private File dumpFile
+
+    /**
+     * The startup settings for a fork of the given jdk and classpath that runs the given number of
+     * classes.
+     */
+    static RetrolambdaStartup of(File archivesDir, String jdk, int jdkVersion, List<File> forkClasspath, int classes) {
+        RetrolambdaStartup startup = new RetrolambdaStartup()
+        if (classes <= SMALL_RUN) {
+            startup.smallRun = true
+            startup.jvmArgs.add('-XX:TieredStopAtLevel=1')
+        }
+        if (jdkVersion >= ARCHIVE_JDK) {
+            List<Object> key = [jdk, String.valueOf(jdkVersion)]
+            for (File file : forkClasspath) {
+                key.add(file.absolutePath)
+                key.add(jarHash(file))
+            }
+            startup.archive = new File(archivesDir, RetrolambdaClassCache.hash(key) + '.jsa')
+            if (startup.archive.isFile()) {
+                startup.jvmArgs.add("-XX:SharedArchiveFile=${startup.archive.absolutePath}".toString())
+            } else {
+                archivesDir.mkdirs()
+                startup.dumpFile = File.createTempFile('archive-', '.tmp', archivesDir)
+                startup.jvmArgs.add("-XX:ArchiveClassesAtExit=${startup.dumpFile.absolutePath}".toString())
+            }
+        }
+        return startup
+    }
+
+    /**
+     * Whether this fork only uses the quick compiler.
+     */
+    boolean isSmallRun() {
+        return smallRun
+    }
+
+    /**
+     * Whether this fork uses an archive from an earlier one.
+     */
+    boolean isUsingArchive() {
+        return archive != null && dumpFile == null
+    }
+
+    /**
+     * Moves the archive the fork dumped into place, if it succeeded.
+     */
+    void finish(boolean succeeded) {
+        if (dumpFile == null) {
+            return
+        }
+        try {
+            // An atomic move replaces an archive another fork dumped in the meantime.
+            if (succeeded && dumpFile.length() > 0) {
+                Files.move(dumpFile.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE)
+            }
+        } catch (FileSystemException e) {
+            // Only happens on windows, which can't replace the archive while a fork has it mapped.
+            if (!archive.isFile()) {
+                throw e
+            }
+        } finally {
+            dumpFile.delete()
+        }
+    }
+
+    /**
+     * Hashing a jar reads it, so it's only done once per version of the file.
+     */
+    private static String jarHash(File file) {
+        String key = "${file.absolutePath}:${file.length()}:${file.lastModified()}".toString()
+        String hash = JAR_HASHES.get(key)
+        if (hash == null) {
+            hash = file.isFile() ? RetrolambdaClassCache.hash([file]) : key
+            JAR_HASHES.put(key, hash)
+        }
+        return hash
+    }
+}
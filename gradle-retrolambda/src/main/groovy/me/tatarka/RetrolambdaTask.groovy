@@ -21,88 +21,216 @@ import org.gradle.api.DefaultTask
 import org.gradle.api.JavaVersion
 import org.gradle.api.file.FileCollection
 import org.gradle.api.logging.LogLevel
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.CompileClasspath
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputDirectory
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
 import org.gradle.api.tasks.incremental.IncrementalTaskInputs
 import org.gradle.api.tasks.incremental.InputFileDetails
+import org.gradle.util.GradleVersion
+
+import java.util.concurrent.Callable
 
 import static me.tatarka.RetrolambdaPlugin.javaVersionToBytecode
 
 /**
- * A task that runs retrolambda
+ * A task that runs retrolambda. All inputs are declared relative to the project or by content so
+ * that the output can be shared through the build cache.
  */
+@CacheableTask
 @CompileStatic
 class RetrolambdaTask extends DefaultTask {
     @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
     File inputDir
 
     @OutputDirectory
     File outputDir
 
-    @Input
+    /**
+     * Holds the {@link LambdaIndex} of what was generated in {@link #outputDir}.
+     */
+    @OutputDirectory
+    File stateDir
+
+    /**
+     * The compile classpath of the input classes, not including {@link #inputDir} itself. Only the
+     * abi of these classes is tracked, so changing a method body upstream doesn't rerun the task.
+     */
+    @CompileClasspath
     FileCollection classpath
 
+    /**
+     * The retrolambda artifact, so that changing the retrolambda version invalidates the output.
+     */
+    @Classpath
+    FileCollection retrolambdaClasspath
+
     @Input
     JavaVersion javaVersion = JavaVersion.VERSION_1_6
 
     @Input
     List<String> jvmArgs = []
 
+    @Input
+    boolean defaultMethods
+
+    /**
+     * How retrolambda is run, read from the extension when the task is configured. See
+     * {@link RetrolambdaSettings}.
+     */
+    @Internal
+    RetrolambdaSettings settings
+
+    /**
+     * Where the {@link RetrolambdaReport} of each run is written.
+     */
+    @Internal
+    File reportDir
+
+    @Internal
+    RetrolambdaWorkers workers
+
+    RetrolambdaTask() {
+        if (GradleVersion.current() < GradleVersion.version('4.3')) {
+            // @CompileClasspath isn't known, so register it as plain input files.
+            inputs.files({ classpath } as Callable<FileCollection>)
+        }
+        if (GradleVersion.current() < GradleVersion.version('3.2')) {
+            // @Classpath isn't known, so register it as plain input files.
+            inputs.files({ retrolambdaClasspath } as Callable<FileCollection>)
+        }
+    }
+
     @TaskAction
     def execute(IncrementalTaskInputs inputs) {
-        def retrolambda = project.extensions.getByType(RetrolambdaExtension)
+        RetrolambdaReport report = new RetrolambdaReport(path)
 
+        // Changes to the classpath are reported along with the input classes. Lambdas only depend
+        // on the class they are in, so those only matter when backporting default methods or when
+        // retrolambda itself changed, in which case every output may be affected.
+        Set<File> retrolambdaFiles = retrolambdaClasspath != null ? retrolambdaClasspath.files : Collections.<File> emptySet()
         List<InputFileDetails> changes = []
-        inputs.outOfDate { changes.add(it) }
+        boolean rerunAll = false
+        inputs.outOfDate { InputFileDetails change ->
+            if (isInput(change.file)) {
+                changes.add(change)
+            } else if (defaultMethods || retrolambdaFiles.contains(change.file)) {
+                rerunAll = true
+            }
+        }
+
+        List<File> removed = []
+        inputs.removed { InputFileDetails change ->
+            if (isInput(change.file)) removed.add(change.file)
+        }
 
-        // Ensure output is cleared if build is not incremental.
-        if (inputs.incremental && !changes.isEmpty() && !retrolambda.incremental) {
-            outputDir.eachFile { it.delete() }
-        } else {
+        long start = System.nanoTime()
+        File indexFile = new File(stateDir, 'lambdas.index')
+        LambdaIndex index = LambdaIndex.load(indexFile, outputDir, [inputDir])
+        report.phase('index', start)
+        File graphFile = new File(stateDir, 'interfaces.graph')
+        InterfaceGraph graph = null
+
+        boolean incremental = inputs.incremental && settings.incremental && !rerunAll
+        Collection<File> included = changes*.file
+        if (incremental && defaultMethods) {
+            start = System.nanoTime()
+            graph = InterfaceGraph.load(graphFile, inputDir)
+            if (graph != null) {
+                included = graph.update(included, removed)
+            } else {
+                incremental = false
+            }
+            report.phase('interfaceGraph', start)
+        }
+        report.incremental = incremental
+
+        if (incremental) {
+            start = System.nanoTime()
             for (InputFileDetails change : changes) {
-                if (change.modified) deleteRelated(toOutput(change.file))
+                if (change.modified) report.count('filesDeleted', index.deleteGenerated(toOutput(change.file)))
             }
+            report.phase('staleOutputs', start)
         }
 
         logging.captureStandardOutput(LogLevel.INFO)
 
-        if (!inputs.incremental || !changes.isEmpty()) {
-            RetrolambdaExec exec = new RetrolambdaExec(project)
+        if (!inputs.incremental || rerunAll || !changes.isEmpty()) {
+            // A full run goes to a staging dir first, so that only what changed is touched in the
+            // output dir.
+            File runOutputDir = incremental ? outputDir : new File(temporaryDir, 'staging')
+            if (!incremental) {
+                runOutputDir.deleteDir()
+            }
+
+            RetrolambdaExec exec = new RetrolambdaExec(settings, retrolambdaClasspath.files)
+            exec.workers = workers
             exec.inputDir = inputDir
-            exec.outputDir = outputDir
+            exec.outputDir = runOutputDir
             exec.bytecodeVersion = javaVersionToBytecode(javaVersion)
-            exec.classpath = classpath
-            if (inputs.incremental && retrolambda.incremental) {
-                exec.includedFiles = project.files(changes*.file)
+            exec.classpath = new ArrayList<File>(classpath.files)
+            exec.classpath.add(inputDir)
+            if (incremental) {
+                exec.includedFiles = included
             }
-            exec.defaultMethods = retrolambda.defaultMethods
+            exec.defaultMethods = defaultMethods
             exec.jvmArgs = jvmArgs
+            exec.report = report
+            exec.argumentsDir = new File(temporaryDir, 'args')
+            exec.heapFile = new File(temporaryDir, 'heap.properties')
+            RetrolambdaExec.pruneArgumentFiles(exec.argumentsDir)
             exec.exec()
+
+            if (incremental) {
+                start = System.nanoTime()
+                index.update(included.collect { toOutput(it) })
+                report.phase('index', start)
+            } else {
+                start = System.nanoTime()
+                LambdaIndex staged = LambdaIndex.scan(runOutputDir, [inputDir])
+                report.count('filesDeleted', OutputReconciler.reconcile(runOutputDir, outputDir, index.files(), logger))
+                index = staged.rebase(outputDir)
+                report.phase('reconcile', start)
+                if (defaultMethods) {
+                    start = System.nanoTime()
+                    graph = InterfaceGraph.scan(inputDir)
+                    report.phase('interfaceGraph', start)
+                }
+            }
         }
 
-        inputs.removed { InputFileDetails change ->
-            def outFile = toOutput(change.file)
-            outFile.delete()
-            project.logger.debug("Deleted " + outFile)
-            deleteRelated(outFile)
+        start = System.nanoTime()
+        for (File file : removed) {
+            def outFile = toOutput(file)
+            if (outFile.delete()) report.count('filesDeleted', 1)
+            logger.debug("Deleted " + outFile)
+            report.count('filesDeleted', index.deleteGenerated(outFile))
         }
+        report.phase('staleOutputs', start)
+
+        start = System.nanoTime()
+        index.save(indexFile)
+        report.phase('index', start)
+        if (graph != null) {
+            start = System.nanoTime()
+            graph.save(graphFile)
+            report.phase('interfaceGraph', start)
+        }
+        report.finish(reportDir)
     }
 
-    File toOutput(File file) {
-        return outputDir.toPath().resolve(inputDir.toPath().relativize(file.toPath())).toFile()
+    private boolean isInput(File file) {
+        return file.toPath().startsWith(inputDir.toPath())
     }
 
-    void deleteRelated(File file) {
-        def className = file.name.replaceFirst(/\.class$/, '')
-        // Delete any generated Lambda classes
-        project.logger.debug("Deleting related for " + className + " in " + file.parentFile)
-        file.parentFile.eachFile {
-            if (it.name.matches(/$className\$\$/ + /Lambda.*\.class$/)) {
-                project.logger.debug("Deleted " + it)
-                it.delete()
-            }
-        }
+    File toOutput(File file) {
+        return outputDir.toPath().resolve(inputDir.toPath().relativize(file.toPath())).toFile()
     }
 }
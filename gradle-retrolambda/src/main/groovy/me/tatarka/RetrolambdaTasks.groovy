@@ -0,0 +1,71 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+import org.gradle.api.Action
+import org.gradle.api.Project
+import org.gradle.api.Task
+import org.gradle.util.GradleVersion
+
+/**
+ * Registers and configures tasks lazily on gradle 4.9+, so they are only created and configured
+ * when something in the build needs them. On older versions they are created and configured right
+ * away.
+ * <p>
+ * A registered task is returned as something {@link Task#dependsOn(Object...)} accepts: a
+ * {@code TaskProvider} on 4.9+ and the task itself otherwise.
+ */
+@CompileStatic
+class RetrolambdaTasks {
+    private static final boolean LAZY = GradleVersion.current() >= GradleVersion.version('4.9')
+
+    static <T extends Task> Object register(Project project, String name, Class<T> type, Action<T> configure) {
+        if (LAZY) {
+            return Lazy.register(project, name, type, configure)
+        }
+        T task = project.tasks.create(name, type)
+        configure.execute(task)
+        return task
+    }
+
+    /**
+     * Configures the task with the given name when it's created, it must already be registered.
+     */
+    static <T extends Task> void configure(Project project, String name, Class<T> type, Action<T> configure) {
+        if (LAZY) {
+            Lazy.configure(project, name, type, configure)
+        } else {
+            configure.execute(type.cast(project.tasks.getByName(name)))
+        }
+    }
+
+    /**
+     * Kept separate so the provider api classes are only loaded on gradle versions that have them.
+     */
+    private static class Lazy {
+        static <T extends Task> Object register(Project project, String name, Class<T> type, Action<T> configure) {
+            return project.tasks.register(name, type, configure)
+        }
+
+        static <T extends Task> void configure(Project project, String name, Class<T> type, Action<T> configure) {
+            project.tasks.named(name).configure { Task task ->
+                configure.execute(type.cast(task))
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+import org.gradle.util.VersionNumber
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.jar.JarFile
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+import java.util.zip.ZipEntry
+
+/**
+ * What the plugin needs to know about a retrolambda jar and the jdk it runs on. Each project and
+ * task would otherwise look these up again, so they are resolved once and shared for as long as
+ * the gradle daemon lives.
+ * <p>
+ * A jar is keyed by its path, size and modification time, so replacing it is picked up by the next
+ * build. Only executables that were found are remembered, so installing a missing jdk is picked up
+ * too.
+ */
+@CompileStatic
+class RetrolambdaTool {
+    private static final Pattern RETROLAMBDA_JAR = Pattern.compile('retrolambda-(\\d.*)\\.jar')
+    private static final Pattern JAVA_VERSION = Pattern.compile('(\\d+)(?:\\.(\\d+))?')
+    private static final String POM_PROPERTIES = 'META-INF/maven/net.orfjackal.retrolambda/retrolambda/pom.properties'
+    private static final VersionNumber JAVA_AGENT_NOT_REQUIRED = VersionNumber.parse('1.6.0')
+    private static final VersionNumber INCLUDED_FILES = VersionNumber.parse('2.1.0')
+
+    private static final ConcurrentMap<List<Object>, RetrolambdaTool> TOOLS = new ConcurrentHashMap<>()
+    private static final Set<String> EXECUTABLES = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>())
+    private static final ConcurrentMap<String, Integer> JDK_VERSIONS = new ConcurrentHashMap<>()
+    private static volatile String currentJdk
+
+    final List<File> classpath
+    /** The version of retrolambda, or null if it isn't known. */
+    final VersionNumber version
+    /** Versions before 1.6.0 have to be loaded as a javaagent. */
+    final boolean requiresJavaAgent
+    /** Versions since 2.1.0 take a list of files to process and can read arguments from files. */
+    final boolean supportsIncludedFiles
+
+    private RetrolambdaTool(List<File> classpath, VersionNumber version) {
+        this.classpath = classpath
+        this.version = version
+        // An unknown version is assumed to be old, as it has always been.
+        this.requiresJavaAgent = version == null || version < JAVA_AGENT_NOT_REQUIRED
+        this.supportsIncludedFiles = version != null && version >= INCLUDED_FILES
+    }
+
+    static RetrolambdaTool of(Collection<File> retrolambdaClasspath) {
+        List<Object> key = []
+        for (File file : retrolambdaClasspath) {
+            key.add(file.absolutePath)
+            key.add(file.length())
+            key.add(file.lastModified())
+        }
+        RetrolambdaTool tool = TOOLS.get(key)
+        if (tool == null) {
+            List<File> classpath = Collections.unmodifiableList(new ArrayList<File>(retrolambdaClasspath))
+            tool = new RetrolambdaTool(classpath, findVersion(classpath))
+            RetrolambdaTool existing = TOOLS.putIfAbsent(key, tool)
+            if (existing != null) {
+                tool = existing
+            }
+        }
+        return tool
+    }
+
+    /**
+     * Whether the executable exists, with or without an {@code .exe} extension.
+     */
+    static boolean executableExists(String file) {
+        if (EXECUTABLES.contains(file)) {
+            return true
+        }
+        boolean exists = new File(file).exists() || new File(file + '.exe').exists()
+        if (exists) {
+            EXECUTABLES.add(file)
+        }
+        return exists
+    }
+
+    /**
+     * The jdk gradle is running on.
+     */
+    static String currentJdk() {
+        String jdk = currentJdk
+        if (jdk == null) {
+            jdk = findCurrentJdk()
+            currentJdk = jdk
+        }
+        return jdk
+    }
+
+    /**
+     * The major java version of the jdk, ex: 8 or 11, read from its release file. Returns 0 if it
+     * isn't known.
+     */
+    static int jdkVersion(String jdk) {
+        Integer version = JDK_VERSIONS.get(jdk)
+        if (version == null) {
+            version = findJdkVersion(jdk)
+            JDK_VERSIONS.put(jdk, version)
+        }
+        return version
+    }
+
+    private static int findJdkVersion(String jdk) {
+        File release = new File(jdk, 'release')
+        if (!release.isFile()) {
+            return 0
+        }
+        Properties properties = new Properties()
+        try {
+            release.withInputStream { InputStream input -> properties.load(input) }
+        } catch (IOException e) {
+            return 0
+        }
+        // Quoted, like "1.8.0_202" or "11.0.2".
+        String version = properties.getProperty('JAVA_VERSION', '').replace('"', '')
+        Matcher matcher = JAVA_VERSION.matcher(version)
+        if (!matcher.lookingAt()) {
+            return 0
+        }
+        int major = Integer.parseInt(matcher.group(1))
+        return major == 1 && matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : major
+    }
+
+    /**
+     * The version from the name of the jar, or else from the maven metadata inside it, so a
+     * renamed local jar still works.
+     */
+    private static VersionNumber findVersion(List<File> classpath) {
+        for (File file : classpath) {
+            Matcher matcher = RETROLAMBDA_JAR.matcher(file.name)
+            if (matcher.matches()) {
+                return VersionNumber.parse(matcher.group(1))
+            }
+        }
+        for (File file : classpath) {
+            if (!file.isFile()) {
+                continue
+            }
+            try {
+                JarFile jar = new JarFile(file)
+                try {
+                    ZipEntry entry = jar.getEntry(POM_PROPERTIES)
+                    if (entry != null) {
+                        Properties properties = new Properties()
+                        InputStream input = jar.getInputStream(entry)
+                        try {
+                            properties.load(input)
+                        } finally {
+                            input.close()
+                        }
+                        String version = properties.getProperty('version')
+                        if (version) {
+                            return VersionNumber.parse(version)
+                        }
+                    }
+                } finally {
+                    jar.close()
+                }
+            } catch (IOException ignored) {
+                // Not a jar, keep looking.
+            }
+        }
+        // Don't know version
+        return null
+    }
+
+    private static String findCurrentJdk() {
+        String javaHomeProp = System.getProperty('java.home')
+        if (javaHomeProp) {
+            int jreIndex = javaHomeProp.lastIndexOf("${File.separator}jre")
+            if (jreIndex != -1) {
+                return javaHomeProp.substring(0, jreIndex)
+            } else {
+                return javaHomeProp
+            }
+        } else {
+            return System.getenv("JAVA_HOME")
+        }
+    }
+}
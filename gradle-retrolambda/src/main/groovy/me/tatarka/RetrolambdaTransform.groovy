@@ -37,6 +37,9 @@ import static me.tatarka.RetrolambdaPlugin.javaVersionToBytecode
 @CompileStatic
 class RetrolambdaTransform extends Transform {
 
+    // Jars bigger than this are split up to be processed in parallel.
+    private static final long JAR_PART_SIZE = 4 * 1024 * 1024
+
     private final Project project
     private final RetrolambdaExtension retrolambda
     private final List<BaseVariant> variants = new ArrayList<>()
@@ -58,58 +61,216 @@ class RetrolambdaTransform extends Transform {
 
     @Override
     void transform(Context context, Collection<TransformInput> inputs, Collection<TransformInput> referencedInputs, TransformOutputProvider outputProvider, boolean isIncremental) throws IOException, TransformException, InterruptedException {
+        if (isDesugared()) {
+            // The android plugin backports the classes when it dexes them.
+            return
+        }
         context.logging.captureStandardOutput(LogLevel.INFO)
 
+        if (!isIncremental) {
+            // The android plugin keeps a list of every output, so the output of a jar that is no
+            // longer an input would still be passed on. Everything is written again anyway.
+            outputProvider.deleteAll()
+        }
+        def outputDir = outputProvider.getContentLocation("retrolambda", outputTypes, scopes, Format.DIRECTORY)
+        RetrolambdaReport report = new RetrolambdaReport(reportName(context, outputDir))
+        report.incremental = isIncremental
+        // Every input is on the classpath of the others, so they see the same classes as they would
+        // have if they were compiled together.
+        List<File> inputDirs = []
+        List<File> inputFiles = []
         for (TransformInput input : inputs) {
-            def outputDir = outputProvider.getContentLocation("retrolambda", outputTypes, scopes, Format.DIRECTORY)
+            inputDirs.addAll(input.directoryInputs*.file)
+            inputFiles.addAll(input.directoryInputs*.file)
+            inputFiles.addAll(input.jarInputs*.file)
+        }
+
+        long start = System.nanoTime()
+        def indexFile = new File(context.temporaryDir, 'lambdas.index')
+        LambdaIndex index = LambdaIndex.load(indexFile, outputDir, inputDirs)
+        report.phase('index', start)
+        List<File> changedOutputs = []
+        List<File> classpath = null
+        File argumentsDir = new File(context.temporaryDir, 'args')
+        RetrolambdaExec.pruneArgumentFiles(argumentsDir)
+        File heapFile = new File(context.temporaryDir, 'heap.properties')
+        // The transform itself still runs against the project, but the execs don't need it.
+        RetrolambdaSettings settings = RetrolambdaSettings.from(project)
+        Set<File> retrolambdaClasspath = project.configurations.getByName('retrolambdaConfig').files
+        RetrolambdaWorkers workers = RetrolambdaExec.createWorkers(project, settings)
+        // Variants often have the same classes, like flavors that only change resources. Unless
+        // the class cache is set either way, they share one of their own so each class is only
+        // backported once. With default methods a class's output depends on the whole variant, so
+        // there would be nothing to share.
+        File classCacheDir = retrolambda.classCache != null || retrolambda.defaultMethods ? null : new File(project.buildDir, 'intermediates/retrolambda/classes')
 
-            // Instead of looping, it might be better to figure out a way to pass multiple input
-            // dirs into retrolambda. Luckily, the common case is only one.
+        // Retrolambda only takes a single input dir, so each one is a separate run. There are
+        // commonly several (javac, kotlin, annotation processors, other transforms), so run them
+        // in parallel.
+        List<RetrolambdaExec> execs = []
+        // The interface graph of each input dir when backporting default methods. A null graph
+        // means the dir is run in full and the graph is built afterwards.
+        Map<File, InterfaceGraph> graphs = new HashMap<>()
+        boolean rescan = false
+        for (TransformInput input : inputs) {
             for (DirectoryInput directoryInput : input.directoryInputs) {
                 File inputFile = directoryInput.file
-                FileCollection changed
+                Collection<File> changed
                 if (isIncremental) {
-                    changed = project.files()
+                    List<File> changedFiles = []
+                    List<File> removedFiles = []
                     for (Map.Entry<File, Status> entry : directoryInput.changedFiles) {
                         File file = entry.key; Status status = entry.value
                         if (status == ADDED || status == CHANGED) {
-                            changed += project.files(file);
+                            changedFiles.add(file)
+                        }
+                        if (status == REMOVED) {
+                            removedFiles.add(file)
                         }
                         if (status == CHANGED || status == REMOVED) {
+                            start = System.nanoTime()
                             File output = toOutput(inputFile, outputDir, file)
-                            output.delete()
-                            deleteRelated(output)
+                            if (output.delete()) report.count('filesDeleted', 1)
+                            report.count('filesDeleted', index.deleteGenerated(output))
+                            report.phase('staleOutputs', start)
+                        }
+                    }
+                    Collection<File> included = changedFiles
+                    if (retrolambda.defaultMethods) {
+                        start = System.nanoTime()
+                        InterfaceGraph graph = InterfaceGraph.load(graphFile(context, inputFile), inputFile)
+                        if (graph != null) {
+                            included = graph.update(changedFiles, removedFiles)
+                        } else if (!changedFiles.isEmpty()) {
+                            // Nothing is known about the hierarchy, so run the whole dir.
+                            included = null
+                            rescan = true
+                        }
+                        graphs.put(inputFile, graph)
+                        report.phase('interfaceGraph', start)
+                    }
+                    if (changedFiles.isEmpty()) {
+                        continue
+                    }
+                    if (included != null) {
+                        changed = included
+                        for (File file : included) {
+                            changedOutputs.add(toOutput(inputFile, outputDir, file))
                         }
+                    } else {
+                        changed = null
                     }
                 } else {
                     changed = null
+                    if (retrolambda.defaultMethods) {
+                        graphs.put(inputFile, null)
+                    }
+                }
+
+                if (classpath == null) {
+                    classpath = new ArrayList<File>(getClasspath(context, outputDir, referencedInputs).files)
+                    classpath.addAll(inputFiles)
                 }
 
-                def exec = new RetrolambdaExec(project)
+                def exec = new RetrolambdaExec(settings, retrolambdaClasspath)
+                exec.workers = workers
                 exec.inputDir = inputFile
                 exec.outputDir = outputDir
                 exec.bytecodeVersion = javaVersionToBytecode(retrolambda.javaVersion)
-                exec.classpath = getClasspath(context, outputDir, referencedInputs) + project.files(inputFile)
+                exec.classpath = classpath
                 exec.includedFiles = changed
                 exec.defaultMethods = retrolambda.defaultMethods
                 exec.jvmArgs = retrolambda.jvmArgs
-                exec.exec()
+                exec.report = report
+                exec.argumentsDir = argumentsDir
+                exec.heapFile = heapFile
+                exec.classCacheDir = classCacheDir
+                execs.add(exec)
             }
         }
-    }
 
-    private static File toOutput(File inputDir, File outputDir, File file) {
-        return outputDir.toPath().resolve(inputDir.toPath().relativize(file.toPath())).toFile()
-    }
+        // A jar is run as a whole whenever it changes. Only the classes retrolambda has to change
+        // are extracted, and a large jar is split up so its parts run in parallel.
+        List<RetrolambdaJar> jars = []
+        for (TransformInput input : inputs) {
+            for (JarInput jarInput : input.jarInputs) {
+                File outputJar = outputProvider.getContentLocation(jarInput.name, outputTypes, scopes, Format.JAR)
+                if (isIncremental && jarInput.status == NOTCHANGED) {
+                    continue
+                }
+                if (isIncremental && jarInput.status == REMOVED) {
+                    outputJar.delete()
+                    continue
+                }
+
+                start = System.nanoTime()
+                File workDir = new File(context.temporaryDir, "jars/${RetrolambdaClassCache.hash([jarInput.name])}")
+                RetrolambdaJar jar = new RetrolambdaJar(jarInput.file, outputJar, workDir, javaVersionToBytecode(retrolambda.javaVersion))
+                jars.add(jar)
+                int parts = (int) Math.max(1, Math.min(Runtime.runtime.availableProcessors(), jarInput.file.length().intdiv(JAR_PART_SIZE)))
+                List<File> jarInputDirs = jar.extract(parts, retrolambda.defaultMethods)
+                report.phase('jars', start)
+                for (File jarInputDir : jarInputDirs) {
+                    if (classpath == null) {
+                        classpath = new ArrayList<File>(getClasspath(context, outputDir, referencedInputs).files)
+                        classpath.addAll(inputFiles)
+                    }
 
-    private static void deleteRelated(File file) {
-        def className = file.name.replaceFirst(/\.class$/, '')
-        // Delete any generated Lambda classes
-        file.parentFile.eachFile {
-            if (it.name.matches(/$className\$\$/ + /Lambda.*\.class$/)) {
-                it.delete()
+                    def exec = new RetrolambdaExec(settings, retrolambdaClasspath)
+                    exec.workers = workers
+                    exec.inputDir = jarInputDir
+                    exec.outputDir = RetrolambdaJar.outputDirFor(jarInputDir)
+                    exec.bytecodeVersion = javaVersionToBytecode(retrolambda.javaVersion)
+                    exec.classpath = classpath
+                    exec.defaultMethods = retrolambda.defaultMethods
+                    exec.jvmArgs = retrolambda.jvmArgs
+                    exec.report = report
+                    exec.argumentsDir = argumentsDir
+                    exec.heapFile = heapFile
+                    exec.classCacheDir = classCacheDir
+                    execs.add(exec)
+                }
+            }
+        }
+
+        RetrolambdaExec.execAll(execs)
+        start = System.nanoTime()
+        for (RetrolambdaJar jar : jars) {
+            jar.write()
+        }
+        report.phase('jars', start)
+
+        start = System.nanoTime()
+        if (!isIncremental || rescan) {
+            index = LambdaIndex.scan(outputDir, inputDirs)
+        } else {
+            index.update(changedOutputs)
+        }
+        index.save(indexFile)
+        report.phase('index', start)
+
+        if (!graphs.isEmpty()) {
+            start = System.nanoTime()
+            for (Map.Entry<File, InterfaceGraph> entry : graphs.entrySet()) {
+                InterfaceGraph graph = entry.value ?: InterfaceGraph.scan(entry.key)
+                graph.save(graphFile(context, entry.key))
             }
+            report.phase('interfaceGraph', start)
         }
+        report.finish(new File(project.buildDir, 'reports/retrolambda'))
+    }
+
+    private String reportName(Context context, File outputDir) {
+        BaseVariant variant = getVariant(context, outputDir)
+        return "${project.path == ':' ? '' : project.path}:transformClassesWithRetrolambdaFor${variant != null ? variant.name.capitalize() : ''}".toString()
+    }
+
+    private static File graphFile(Context context, File inputDir) {
+        return new File(context.temporaryDir, "interfaces-${RetrolambdaClassCache.hash([inputDir.absolutePath])}.graph")
+    }
+
+    private static File toOutput(File inputDir, File outputDir, File file) {
+        return outputDir.toPath().resolve(inputDir.toPath().relativize(file.toPath())).toFile()
     }
 
     private FileCollection getClasspath(Context context, File outputDir, Collection<TransformInput> referencedInputs) {
@@ -122,6 +283,7 @@ class RetrolambdaTransform extends Transform {
         FileCollection classpathFiles = variant.javaCompile.classpath
         for (TransformInput input : referencedInputs) {
             classpathFiles += project.files(input.directoryInputs*.file)
+            classpathFiles += project.files(input.jarInputs*.file)
         }
 
         // bootClasspath isn't set until the last possible moment because it's expensive to look
@@ -183,13 +345,28 @@ class RetrolambdaTransform extends Transform {
         return Collections.<QualifiedContent.ContentType> singleton(QualifiedContent.DefaultContentType.CLASSES)
     }
 
+    /**
+     * When the android plugin desugars java 8 itself, the transform only references the classes so
+     * they aren't copied. It can't be unregistered because the extension isn't configured yet when
+     * it's registered.
+     */
+    private boolean isDesugared() {
+        return retrolambda.desugar && RetrolambdaPluginAndroid.canDesugar()
+    }
+
     @Override
     Set<QualifiedContent.Scope> getScopes() {
+        if (isDesugared()) {
+            return Collections.<QualifiedContent.Scope> emptySet()
+        }
         return Collections.singleton(QualifiedContent.Scope.PROJECT)
     }
 
     @Override
     Set<QualifiedContent.Scope> getReferencedScopes() {
+        if (isDesugared()) {
+            return Collections.singleton(QualifiedContent.Scope.PROJECT)
+        }
         return Collections.singleton(QualifiedContent.Scope.TESTED_CODE)
     }
 
@@ -200,6 +377,7 @@ class RetrolambdaTransform extends Transform {
                 .put("jvmArgs", retrolambda.jvmArgs)
                 .put("incremental", retrolambda.incremental)
                 .put("defaultMethods", retrolambda.defaultMethods)
+                .put("desugar", isDesugared())
                 .put("jdk", retrolambda.tryGetJdk())
                 .build()
     }
@@ -1,5 +1,6 @@
 package me.tatarka
 
+import groovy.io.FileType
 import groovy.transform.TypeChecked
 import groovy.transform.TypeCheckingMode
 import org.gradle.api.tasks.SourceSet
@@ -26,4 +27,16 @@ class RetrolambdaUtil {
             return set.output.classesDir
         }
     }
+
+    /**
+     * All the files under the dir, sorted, or none if it doesn't exist.
+     */
+    static List<File> listFiles(File dir) {
+        List<File> files = []
+        if (dir.isDirectory()) {
+            dir.eachFileRecurse(FileType.FILES) { File file -> files.add(file) }
+        }
+        Collections.sort(files)
+        return files
+    }
 }
@@ -0,0 +1,37 @@
+package me.tatarka
+
+import groovy.transform.CompileStatic
+import org.gradle.api.Action
+import org.gradle.workers.IsolationMode
+import org.gradle.workers.WorkerConfiguration
+import org.gradle.workers.WorkerExecutor
+
+import javax.inject.Inject
+
+/**
+ * Submits retrolambda runs to gradle's worker api. This is kept separate from
+ * {@link RetrolambdaExec} so that the worker api classes are only loaded on gradle versions that
+ * have them.
+ */
+@CompileStatic
+class RetrolambdaWorkers {
+    private final WorkerExecutor workerExecutor
+
+    @Inject
+    RetrolambdaWorkers(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor
+    }
+
+    void run(List<File> retrolambdaClasspath, Properties properties) {
+        workerExecutor.submit(RetrolambdaRunnable, new Action<WorkerConfiguration>() {
+            @Override
+            void execute(WorkerConfiguration config) {
+                // Isolation is handled by RetrolambdaRunnable so that the classloader can be cached.
+                config.isolationMode = IsolationMode.NONE
+                config.displayName = "retrolambda ${properties.getProperty('retrolambda.inputDir')}"
+                config.params(retrolambdaClasspath, properties)
+            }
+        })
+        workerExecutor.await()
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ Copyright 2014 Evan Tatarka
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package me.tatarka
+
+import groovy.transform.CompileStatic
+
+/**
+ * Passes the output of a forked retrolambda through while timing it for the {@link RetrolambdaReport}.
+ * The time until the first line is the jvm starting up. Retrolambda logs each lambda class as it
+ * saves it, so the time leading up to that is put on the class the lambda is in. Classes without
+ * lambdas aren't logged and so aren't timed. It also notes if the fork ran out of memory.
+ */
+@CompileStatic
+class TimingOutputStream extends OutputStream {
+    private static final String SAVING = 'Saving lambda class: '
+    private static final String LAMBDA = '$$Lambda$'
+    private static final String OUT_OF_MEMORY = 'java.lang.OutOfMemoryError'
+
+    private final OutputStream out
+    private final RetrolambdaReport report
+    private final long start
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream()
+    private long lastLine = -1
+    boolean outOfMemory
+
+    TimingOutputStream(OutputStream out, RetrolambdaReport report, long start) {
+        this.out = out
+        this.report = report
+        this.start = start
+    }
+
+    @Override
+    void write(int b) throws IOException {
+        out.write(b)
+        if (b == '\n' as char) {
+            onLine(line.toString('UTF-8'))
+            line.reset()
+        } else {
+            line.write(b)
+        }
+    }
+
+    @Override
+    void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len)
+        int lineStart = off
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == ('\n' as char)) {
+                line.write(b, lineStart, i - lineStart)
+                onLine(line.toString('UTF-8'))
+                line.reset()
+                lineStart = i + 1
+            }
+        }
+        line.write(b, lineStart, off + len - lineStart)
+    }
+
+    @Override
+    void flush() throws IOException {
+        out.flush()
+    }
+
+    private void onLine(String text) {
+        long now = System.nanoTime()
+        if (text.contains(OUT_OF_MEMORY)) {
+            outOfMemory = true
+        }
+        if (lastLine == -1) {
+            report.phase('engine.jvmStartup', start)
+        } else {
+            int saving = text.indexOf(SAVING)
+            if (saving != -1) {
+                String className = text.substring(saving + SAVING.length()).trim()
+                int lambda = className.indexOf(LAMBDA)
+                report.classTime(lambda != -1 ? className.substring(0, lambda) : className, now - lastLine)
+            }
+        }
+        lastLine = now
+    }
+}
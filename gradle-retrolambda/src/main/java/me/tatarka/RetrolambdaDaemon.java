@@ -0,0 +1,188 @@
+package me.tatarka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * A long-lived jvm that runs retrolambda on behalf of {@code RetrolambdaDaemonClient}. This runs
+ * with retrolambda and the plugin on its classpath, so it must only depend on the jdk.
+ * <p>
+ * On startup it binds to a local port and writes the port and a random token to the registry file
+ * given as the first argument. Each connection is one request: the token, followed by the
+ * retrolambda system properties. The response is an exit status followed by retrolambda's output.
+ * The daemon exits when it has been idle for too long or when its heap stays over the limit.
+ */
+public class RetrolambdaDaemon {
+    static final String PROPERTY_PORT = "port";
+    static final String PROPERTY_TOKEN = "token";
+    static final int STATUS_SUCCESS = 0;
+    static final int STATUS_FAILURE = 1;
+
+    private static final int READ_TIMEOUT = 60 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        File registryFile = new File(args[0]);
+        int idleTimeout = Integer.parseInt(args[1]);
+        int memoryLimitPercent = Integer.parseInt(args[2]);
+
+        Method run = Class.forName("net.orfjackal.retrolambda.Retrolambda").getMethod("run", Properties.class);
+        String token = new BigInteger(130, new SecureRandom()).toString(32);
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(idleTimeout);
+        int port = server.getLocalPort();
+        writeRegistry(registryFile, port, token);
+        log("listening on port " + port);
+        try {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    log("idle for " + idleTimeout + "ms, stopping");
+                    break;
+                }
+                try {
+                    socket.setSoTimeout(READ_TIMEOUT);
+                    handle(socket, token, run);
+                } catch (IOException e) {
+                    log("request failed: " + e);
+                } finally {
+                    socket.close();
+                }
+                if (overMemoryLimit(memoryLimitPercent)) {
+                    log("heap over " + memoryLimitPercent + "% of max, stopping");
+                    break;
+                }
+            }
+        } finally {
+            deleteRegistry(registryFile, port);
+            server.close();
+        }
+    }
+
+    private static void handle(Socket socket, String token, Method run) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (!token.equals(in.readUTF())) {
+            log("rejected request with a bad token");
+            return;
+        }
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(readBytes(in)));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream outputStream = new PrintStream(output, true, "UTF-8");
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        int status = STATUS_SUCCESS;
+        System.setOut(outputStream);
+        System.setErr(outputStream);
+        try {
+            run.invoke(null, properties);
+        } catch (InvocationTargetException e) {
+            status = STATUS_FAILURE;
+            e.getCause().printStackTrace(outputStream);
+        } catch (Exception e) {
+            status = STATUS_FAILURE;
+            e.printStackTrace(outputStream);
+        } finally {
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+            thread.setContextClassLoader(contextClassLoader);
+        }
+
+        out.writeInt(status);
+        writeBytes(out, output.toByteArray());
+        out.flush();
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Retrolambda doesn't keep anything between runs, so a heap that is still over the limit after
+     * a gc means this jvm is too small for the projects using it. Stopping lets the next request
+     * start with a fresh heap.
+     */
+    private static boolean overMemoryLimit(int memoryLimitPercent) {
+        Runtime runtime = Runtime.getRuntime();
+        long limit = runtime.maxMemory() / 100 * memoryLimitPercent;
+        if (runtime.totalMemory() - runtime.freeMemory() <= limit) {
+            return false;
+        }
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory() > limit;
+    }
+
+    private static void writeRegistry(File registryFile, int port, String token) throws IOException {
+        Properties registry = new Properties();
+        registry.setProperty(PROPERTY_PORT, String.valueOf(port));
+        registry.setProperty(PROPERTY_TOKEN, token);
+        File tmp = new File(registryFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            registry.store(out, null);
+        } finally {
+            out.close();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        registryFile.delete();
+        if (!tmp.renameTo(registryFile)) {
+            throw new IOException("Could not write " + registryFile);
+        }
+    }
+
+    private static void deleteRegistry(File registryFile, int port) {
+        // Another daemon may have replaced this one in the registry, leave it alone if so.
+        try {
+            Properties registry = new Properties();
+            InputStream in = new FileInputStream(registryFile);
+            try {
+                registry.load(in);
+            } finally {
+                in.close();
+            }
+            if (String.valueOf(port).equals(registry.getProperty(PROPERTY_PORT))) {
+                //noinspection ResultOfMethodCallIgnored
+                registryFile.delete();
+            }
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+
+    private static void log(String message) {
+        System.out.println(new Date() + " retrolambda daemon: " + message);
+    }
+}
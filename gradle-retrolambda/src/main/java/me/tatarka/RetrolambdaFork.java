@@ -0,0 +1,54 @@
+package me.tatarka;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The main class of a forked retrolambda jvm. This runs retrolambda's own main class and then
+ * writes the peak heap usage to the file given as the first argument, so the next fork can be
+ * sized from it, see {@code RetrolambdaHeap}. Like {@link RetrolambdaDaemon}, it must only depend
+ * on the jdk.
+ */
+public class RetrolambdaFork {
+
+    public static void main(String[] args) throws Throwable {
+        final File heapFile = new File(args[0]);
+        // Retrolambda exits on failure, so the peak is written on the way out.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writePeakHeap(heapFile);
+                } catch (IOException e) {
+                    // Only used to size the next fork.
+                }
+            }
+        });
+        try {
+            Class.forName("net.orfjackal.retrolambda.Main").getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writePeakHeap(File heapFile) throws IOException {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        OutputStream out = new FileOutputStream(heapFile);
+        try {
+            out.write(String.valueOf(peak).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package me.tatarka;
 
+import org.apache.commons.io.FileUtils;
 import org.gradle.testkit.runner.BuildResult;
 import org.gradle.testkit.runner.GradleRunner;
 import org.gradle.testkit.runner.TaskOutcome;
@@ -14,9 +15,11 @@ import java.io.File;
 import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.regex.Pattern;
 
 import static me.tatarka.TestHelpers.*;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
 
 @RunWith(Parameterized.class)
 public class AndroidAppPluginTest {
@@ -221,6 +224,251 @@ public class AndroidAppPluginTest {
         assertThat(lambdaClassFile).exists();
     }
 
+    @Test
+    public void assembleDebugFlavorsShareClasses() throws Exception {
+        writeFile(buildFile,
+                //language="Groovy"
+                "buildscript {\n" +
+                        "    repositories {\n" +
+                        "        maven { url 'https://maven.google.com' }\n" +
+                        "        jcenter()\n" +
+                        "    }\n" +
+                        "    \n" +
+                        "    dependencies {\n" +
+                        "        classpath files(" + getPluginClasspath() + ")\n" +
+                        "        classpath 'com.android.tools.build:gradle:" + androidVersion + "'\n" +
+                        "    }\n" +
+                        "}\n" +
+                        "\n" +
+                        "apply plugin: 'com.android.application'\n" +
+                        "apply plugin: 'me.tatarka.retrolambda'\n" +
+                        "\n" +
+                        "repositories {\n" +
+                        "    maven { url 'https://maven.google.com' }\n" +
+                        "    mavenCentral()\n" +
+                        "}\n" +
+                        "\n" +
+                        "android {\n" +
+                        "    compileSdkVersion 24\n" +
+                        "    buildToolsVersion '" + buildToolsVersion + "'\n" +
+                        "    \n" +
+                        "    defaultConfig {\n" +
+                        "        minSdkVersion 15\n" +
+                        "        targetSdkVersion 24\n" +
+                        "    }\n" +
+                        "    \n" +
+                        // Newer versions require a dimension, but put the flavors in it when there's only one.
+                        (androidVersion.startsWith("1.") || androidVersion.startsWith("2.") ? "" : "    flavorDimensions 'tier'\n") +
+                        "    productFlavors {\n" +
+                        "        free {}\n" +
+                        "        paid {}\n" +
+                        "    }\n" +
+                        "}");
+
+        File manifestFile = new File(rootDir, "src/main/AndroidManifest.xml");
+
+        writeFile(manifestFile,
+                //language="XML"
+                "<manifest package=\"test.test\" " +
+                            "xmlns:android=\"http://schemas.android.com/apk/res/android\">\n" +
+                        "    <application/>\n" +
+                        "</manifest>");
+
+        File javaFile = new File(rootDir, "src/main/java/MainActivity.java");
+
+        writeFile(javaFile, "package test;" +
+                "import android.app.Activity;" +
+                "import android.os.Bundle;" +
+                "import android.util.Log;" +
+                "public class MainActivity extends Activity {\n" +
+                "    public void onCreate(Bundle savedInstanceState) {\n" +
+                "        Runnable lambda = () -> Log.d(\"MainActivity\", \"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assembleDebug", "--stacktrace", "-Pandroid.enableAapt2=false")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":assembleDebug").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        // MainActivity is the same in both flavors, so only the first one backports it.
+        String reports = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/transformClassesWithRetrolambdaForFreeDebug.json"), "UTF-8")
+                + FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/transformClassesWithRetrolambdaForPaidDebug.json"), "UTF-8");
+        assertThat(Pattern.compile("\"cacheHits\": [1-9]").matcher(reports).find()).isTrue();
+    }
+
+    @Test
+    public void assembleDebugFlavorsClassCacheOff() throws Exception {
+        writeFile(buildFile,
+                //language="Groovy"
+                "buildscript {\n" +
+                        "    repositories {\n" +
+                        "        maven { url 'https://maven.google.com' }\n" +
+                        "        jcenter()\n" +
+                        "    }\n" +
+                        "    \n" +
+                        "    dependencies {\n" +
+                        "        classpath files(" + getPluginClasspath() + ")\n" +
+                        "        classpath 'com.android.tools.build:gradle:" + androidVersion + "'\n" +
+                        "    }\n" +
+                        "}\n" +
+                        "\n" +
+                        "apply plugin: 'com.android.application'\n" +
+                        "apply plugin: 'me.tatarka.retrolambda'\n" +
+                        "\n" +
+                        "repositories {\n" +
+                        "    maven { url 'https://maven.google.com' }\n" +
+                        "    mavenCentral()\n" +
+                        "}\n" +
+                        "\n" +
+                        "android {\n" +
+                        "    compileSdkVersion 24\n" +
+                        "    buildToolsVersion '" + buildToolsVersion + "'\n" +
+                        "    \n" +
+                        "    defaultConfig {\n" +
+                        "        minSdkVersion 15\n" +
+                        "        targetSdkVersion 24\n" +
+                        "    }\n" +
+                        "    \n" +
+                        // Newer versions require a dimension, but put the flavors in it when there's only one.
+                        (androidVersion.startsWith("1.") || androidVersion.startsWith("2.") ? "" : "    flavorDimensions 'tier'\n") +
+                        "    productFlavors {\n" +
+                        "        free {}\n" +
+                        "        paid {}\n" +
+                        "    }\n" +
+                        "}\n" +
+                        "\n" +
+                        "retrolambda {\n" +
+                        "    classCache false\n" +
+                        "}");
+
+        File manifestFile = new File(rootDir, "src/main/AndroidManifest.xml");
+
+        writeFile(manifestFile,
+                //language="XML"
+                "<manifest package=\"test.test\" " +
+                            "xmlns:android=\"http://schemas.android.com/apk/res/android\">\n" +
+                        "    <application/>\n" +
+                        "</manifest>");
+
+        File javaFile = new File(rootDir, "src/main/java/MainActivity.java");
+
+        writeFile(javaFile, "package test;" +
+                "import android.app.Activity;" +
+                "import android.os.Bundle;" +
+                "import android.util.Log;" +
+                "public class MainActivity extends Activity {\n" +
+                "    public void onCreate(Bundle savedInstanceState) {\n" +
+                "        Runnable lambda = () -> Log.d(\"MainActivity\", \"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assembleDebug", "--stacktrace", "-Pandroid.enableAapt2=false")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":assembleDebug").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        // Turning the class cache off also turns off the one the variants share.
+        assertThat(new File(rootDir, "build/intermediates/retrolambda/classes")).doesNotExist();
+        String reports = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/transformClassesWithRetrolambdaForFreeDebug.json"), "UTF-8")
+                + FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/transformClassesWithRetrolambdaForPaidDebug.json"), "UTF-8");
+        assertThat(reports).doesNotContain("\"cacheHits\"");
+    }
+
+    @Test
+    public void assembleDebugDesugar() throws Exception {
+        assumeTrue(!androidVersion.startsWith("1.") && !androidVersion.startsWith("2."));
+
+        writeFile(buildFile,
+                //language="Groovy"
+                "buildscript {\n" +
+                        "    repositories {\n" +
+                        "        maven { url 'https://maven.google.com' }\n" +
+                        "        jcenter()\n" +
+                        "    }\n" +
+                        "    \n" +
+                        "    dependencies {\n" +
+                        "        classpath files(" + getPluginClasspath() + ")\n" +
+                        "        classpath 'com.android.tools.build:gradle:" + androidVersion + "'\n" +
+                        "    }\n" +
+                        "}\n" +
+                        "\n" +
+                        "apply plugin: 'com.android.application'\n" +
+                        "apply plugin: 'me.tatarka.retrolambda'\n" +
+                        "\n" +
+                        "repositories {\n" +
+                        "    maven { url 'https://maven.google.com' }\n" +
+                        "    mavenCentral()\n" +
+                        "}\n" +
+                        "\n" +
+                        "android {\n" +
+                        "    compileSdkVersion 24\n" +
+                        "    buildToolsVersion '" + buildToolsVersion + "'\n" +
+                        "    \n" +
+                        "    defaultConfig {\n" +
+                        "        minSdkVersion 15\n" +
+                        "        targetSdkVersion 24\n" +
+                        "    }\n" +
+                        "    \n" +
+                        "    compileOptions {\n" +
+                        "        sourceCompatibility JavaVersion.VERSION_1_8\n" +
+                        "        targetCompatibility JavaVersion.VERSION_1_8\n" +
+                        "    }\n" +
+                        "}\n" +
+                        "\n" +
+                        "retrolambda {\n" +
+                        "    desugar true\n" +
+                        "}");
+
+        File manifestFile = new File(rootDir, "src/main/AndroidManifest.xml");
+
+        writeFile(manifestFile,
+                //language="XML"
+                "<manifest package=\"test.test\" " +
+                            "xmlns:android=\"http://schemas.android.com/apk/res/android\">\n" +
+                        "    <application/>\n" +
+                        "</manifest>");
+
+        File javaFile = new File(rootDir, "src/main/java/MainActivity.java");
+
+        writeFile(javaFile, "package test;" +
+                "import android.app.Activity;" +
+                "import android.os.Bundle;" +
+                "import android.util.Log;" +
+                "public class MainActivity extends Activity {\n" +
+                "    public void onCreate(Bundle savedInstanceState) {\n" +
+                "        Runnable lambda = () -> Log.d(\"MainActivity\", \"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assembleDebug", "--stacktrace", "-Pandroid.enableAapt2=false")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":assembleDebug").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        // The android plugin backports the lambda while dexing, so retrolambda never generates it.
+        assertThat(findFile(rootDir, "MainActivity$$Lambda$1.class")).isNull();
+        assertThat(new File(rootDir, "build/reports/retrolambda")).doesNotExist();
+    }
+
     @Test
     public void assembleDebugIncrementalShouldntLeak() throws Exception {
         writeFile(buildFile,
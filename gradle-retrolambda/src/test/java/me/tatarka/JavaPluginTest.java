@@ -1,9 +1,12 @@
 package me.tatarka;
 
 
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.JavaVersion;
 import org.gradle.testkit.runner.BuildResult;
 import org.gradle.testkit.runner.GradleRunner;
 import org.gradle.testkit.runner.TaskOutcome;
+import org.gradle.util.GradleVersion;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -23,6 +26,7 @@ import static me.tatarka.TestHelpers.newestSupportedGradleVersion;
 import static me.tatarka.TestHelpers.oldestSupportedGradleVersion;
 import static me.tatarka.TestHelpers.writeFile;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
 
 @RunWith(Parameterized.class)
 public class JavaPluginTest {
@@ -94,7 +98,7 @@ public class JavaPluginTest {
     }
 
     @Test
-    public void test() throws Exception {
+    public void assembleInProcess() throws Exception {
         writeFile(buildFile, "buildscript {\n" +
                 "    dependencies {\n" +
                 "        classpath files(" + getPluginClasspath() + ")\n" +
@@ -108,39 +112,184 @@ public class JavaPluginTest {
                 "    mavenCentral()\n" +
                 "}\n" +
                 "\n" +
-                "dependencies {\n" +
-                "    testCompile 'junit:junit:4.12'\n" +
+                "retrolambda {\n" +
+                "    inProcess true\n" +
+                "}");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":assemble").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        File mainClassFile = findFile(rootDir, "Main.class");
+        File lambdaClassFile = findFile(rootDir, "Main$$Lambda$1.class");
+
+        assertThat(mainClassFile).exists();
+        assertThat(lambdaClassFile).exists();
+
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        // It can only run in process with the worker api on java 8, and forks otherwise.
+        if (JavaVersion.current() == JavaVersion.VERSION_1_8 && GradleVersion.version(gradleVersion).compareTo(GradleVersion.version("5.0")) >= 0) {
+            assertThat(report).contains("\"inProcessRuns\": 1");
+            assertThat(report).doesNotContain("\"forks\"");
+        } else {
+            assertThat(report).contains("\"forks\": 1");
+            assertThat(report).doesNotContain("\"inProcessRuns\"");
+        }
+    }
+
+    @Test
+    public void assembleInDaemon() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
                 "}\n" +
                 "\n" +
-                "test {\n" +
-                "    testLogging { events \"failed\" }\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    daemon true\n" +
+                "    daemonIdleTimeout 1\n" +
+                // A jvm arg only this test uses, so it doesn't find a daemon another test started.
+                "    jvmArgs '-Dretrolambda.test=" + System.nanoTime() + "'\n" +
                 "}");
 
         File javaFile = new File(rootDir, "src/main/java/Main.java");
 
-        writeFile(javaFile, "import java.util.concurrent.Callable;\n" +
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--info", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(result.getOutput()).contains("Starting retrolambda daemon");
+
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "        Runnable lambda2 = () -> System.out.println(\"Hello, Lambda 2!\");\n" +
+                "        lambda2.run();\n" +
+                "    }\n" +
+                "}");
+
+        result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--info", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        // The second build uses the daemon the first one started.
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(result.getOutput()).doesNotContain("Starting retrolambda daemon");
+        assertThat(findFile(rootDir, "Main$$Lambda$2.class")).exists();
+    }
+
+    @Test
+    public void assembleInBatch() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
                 "\n" +
-                "public class Main {\n" +
-                "    public static Callable<String> f() {\n" +
-                "        return () -> \"Hello, Lambda Test!\";\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    batch true\n" +
+                "}");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
                 "    }\n" +
                 "}");
 
-        File testJavaFile = new File(rootDir, "src/test/java/Test.java");
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
 
-        writeFile(testJavaFile, "import org.junit.Assert;\n" +
-                "import org.junit.runner.RunWith;\n" +
-                "import org.junit.runners.JUnit4;\n" +
+        assertThat(result.task(":assemble").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        File mainClassFile = findFile(rootDir, "Main.class");
+        File lambdaClassFile = findFile(rootDir, "Main$$Lambda$1.class");
+
+        assertThat(mainClassFile).exists();
+        assertThat(lambdaClassFile).exists();
+
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        assertThat(report).contains("\"batchedRuns\": 1");
+        assertThat(report).doesNotContain("\"forks\"");
+    }
+
+    @Test
+    public void assembleWithFastStartup() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
                 "\n" +
-                "import java.util.concurrent.Callable;\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
                 "\n" +
-                "@RunWith(JUnit4.class)\n" +
-                "public class Test {\n" +
-                "    @org.junit.Test\n" +
-                "    public void test() throws Exception {\n" +
-                "        Runnable lambda = () -> Assert.assertTrue(true);\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    fastStartup true\n" +
+                "}");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
                 "        lambda.run();\n" +
-                "        Assert.assertEquals(\"Hello, Lambda Test!\", Main.f().call());\n" +
                 "    }\n" +
                 "}");
 
@@ -148,15 +297,24 @@ public class JavaPluginTest {
         BuildResult result = GradleRunner.create()
                 .withGradleVersion(gradleVersion)
                 .withProjectDir(rootDir)
-                .withArguments("test", "--stacktrace")
+                .withArguments("assemble", "--stacktrace")
                 .forwardStdError(errorOutput)
                 .build();
 
-        assertThat(result.task(":test").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(result.task(":assemble").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(findFile(rootDir, "Main$$Lambda$1.class")).exists();
+        // A single class is a small run, so the fork only uses the quick compiler.
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        assertThat(report).contains("\"tieredStopForks\": 1");
     }
 
     @Test
-    public void run() throws Exception {
+    public void assembleWithFastStartupReusesArchive() throws Exception {
+        // Retrolambda is forked with the jdk running the test, which can only archive on 13+.
+        String specification = System.getProperty("java.specification.version");
+        int javaVersion = Integer.parseInt(specification.startsWith("1.") ? specification.substring(2) : specification);
+        assumeTrue(javaVersion >= 13);
+
         writeFile(buildFile, "buildscript {\n" +
                 "    dependencies {\n" +
                 "        classpath files(" + getPluginClasspath() + ")\n" +
@@ -164,26 +322,121 @@ public class JavaPluginTest {
                 "}\n" +
                 "\n" +
                 "apply plugin: 'java'\n" +
-                "apply plugin: 'application'\n" +
                 "apply plugin: 'me.tatarka.retrolambda'\n" +
                 "\n" +
                 "repositories {\n" +
                 "    mavenCentral()\n" +
                 "}\n" +
                 "\n" +
-                "mainClassName = \"Main\"\n" +
+                "retrolambda {\n" +
+                "    fastStartup true\n" +
+                "    jdk = '" + System.getProperty("java.home").replace("\\", "\\\\") + "'\n" +
+                "}");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        // The first run dumps the archive and the second one uses it.
+        for (int i = 0; i < 2; i++) {
+            StringWriter errorOutput = new StringWriter();
+            BuildResult result = GradleRunner.create()
+                    .withGradleVersion(gradleVersion)
+                    .withProjectDir(rootDir)
+                    .withArguments("assemble", "--rerun-tasks", "--stacktrace")
+                    .forwardStdError(errorOutput)
+                    .build();
+
+            assertThat(result.task(":assemble").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        }
+
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        assertThat(report).contains("\"archivedForks\": 1");
+    }
+
+    @Test
+    public void assembleSharded() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
                 "\n" +
-                "jar {\n" +
-                "    manifest {\n" +
-                "        attributes 'Main-Class': mainClassName\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    shards 2\n" +
+                "}");
+
+        // Enough classes with lambdas for two shards of at least 500, spread over a few packages.
+        for (int i = 0; i < 1000; i++) {
+            int pkg = i % 4;
+            writeFile(new File(rootDir, "src/main/java/p" + pkg + "/C" + i + ".java"), "package p" + pkg + ";\n" +
+                    "public class C" + i + " {\n" +
+                    "    public static void run() {\n" +
+                    "        Runnable lambda = () -> System.out.println(\"Hello, Lambda " + i + "!\");\n" +
+                    "        lambda.run();\n" +
+                    "    }\n" +
+                    "}");
+        }
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":assemble").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        // Lambda classes are named the same as they would be in a single run.
+        assertThat(findFile(rootDir, "p0/C0$$Lambda$1.class")).exists();
+        assertThat(findFile(rootDir, "p3/C999$$Lambda$1.class")).exists();
+
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        assertThat(report).contains("\"shards\": 2");
+        assertThat(report).contains("\"forks\": 2");
+    }
+
+    @Test
+    public void assembleFromBuildCache() throws Exception {
+        assumeTrue(GradleVersion.version(gradleVersion).compareTo(GradleVersion.version("4.0")) >= 0);
+
+        writeFile(new File(rootDir, "settings.gradle"), "buildCache {\n" +
+                "    local {\n" +
+                "        directory = new File(rootDir, 'build-cache')\n" +
+                "    }\n" +
+                "}");
+
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
                 "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
                 "}");
 
         File javaFile = new File(rootDir, "src/main/java/Main.java");
 
         writeFile(javaFile, "public class Main {\n" +
                 "    public static void main(String[] args) {\n" +
-                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda Run!\");\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
                 "        lambda.run();\n" +
                 "    }\n" +
                 "}");
@@ -192,11 +445,656 @@ public class JavaPluginTest {
         BuildResult result = GradleRunner.create()
                 .withGradleVersion(gradleVersion)
                 .withProjectDir(rootDir)
-                .withArguments("run")
+                .withArguments("assemble", "--build-cache", "--stacktrace")
                 .forwardStdError(errorOutput)
                 .build();
 
-        assertThat(result.task(":run").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
-        assertThat(result.getOutput()).contains("Hello, Lambda Run!");
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        errorOutput = new StringWriter();
+        result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("clean", "assemble", "--build-cache", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.FROM_CACHE);
+
+        File lambdaClassFile = findFile(new File(rootDir, "build/classes"), "Main$$Lambda$1.class");
+
+        assertThat(lambdaClassFile).exists();
+    }
+
+    @Test
+    public void test() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "dependencies {\n" +
+                "    testCompile 'junit:junit:4.12'\n" +
+                "}\n" +
+                "\n" +
+                "test {\n" +
+                "    testLogging { events \"failed\" }\n" +
+                "}");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+
+        writeFile(javaFile, "import java.util.concurrent.Callable;\n" +
+                "\n" +
+                "public class Main {\n" +
+                "    public static Callable<String> f() {\n" +
+                "        return () -> \"Hello, Lambda Test!\";\n" +
+                "    }\n" +
+                "}");
+
+        File testJavaFile = new File(rootDir, "src/test/java/Test.java");
+
+        writeFile(testJavaFile, "import org.junit.Assert;\n" +
+                "import org.junit.runner.RunWith;\n" +
+                "import org.junit.runners.JUnit4;\n" +
+                "\n" +
+                "import java.util.concurrent.Callable;\n" +
+                "\n" +
+                "@RunWith(JUnit4.class)\n" +
+                "public class Test {\n" +
+                "    @org.junit.Test\n" +
+                "    public void test() throws Exception {\n" +
+                "        Runnable lambda = () -> Assert.assertTrue(true);\n" +
+                "        lambda.run();\n" +
+                "        Assert.assertEquals(\"Hello, Lambda Test!\", Main.f().call());\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("test", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":test").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+    }
+
+    @Test
+    public void run() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'application'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "mainClassName = \"Main\"\n" +
+                "\n" +
+                "jar {\n" +
+                "    manifest {\n" +
+                "        attributes 'Main-Class': mainClassName\n" +
+                "    }\n" +
+                "}");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda Run!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("run")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":run").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(result.getOutput()).contains("Hello, Lambda Run!");
+    }
+
+    @Test
+    public void runIncrementalDefaultMethods() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'application'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    defaultMethods true\n" +
+                "}\n" +
+                "\n" +
+                "mainClassName = \"Main\"");
+
+        writeFile(new File(rootDir, "src/main/java/Greeter.java"), "public interface Greeter {\n" +
+                "    default void greet(String name) {\n" +
+                "        System.out.println(\"Hello, \" + name + \"!\");\n" +
+                "    }\n" +
+                "}");
+
+        // Doesn't depend on Greeter, so it shouldn't be run again.
+        writeFile(new File(rootDir, "src/main/java/Other.java"), "public class Other {\n" +
+                "    Runnable lambda = () -> System.out.println(\"Hello, Other!\");\n" +
+                "}");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+
+        writeFile(javaFile, "public class Main implements Greeter {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        new Main().greet(\"Default Method\");\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("run")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.getOutput()).contains("Hello, Default Method!");
+        File otherClassFile = findFile(new File(rootDir, "build/classes"), "Other.class");
+        // Make sure a rewrite would be seen.
+        assertThat(otherClassFile.setLastModified(0)).isTrue();
+
+        // Only Main changed, but it still needs Greeter to get its default method.
+        writeFile(javaFile, "public class Main implements Greeter {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        new Main().greet(\"Incremental Default Method\");\n" +
+                "    }\n" +
+                "}");
+
+        errorOutput = new StringWriter();
+        result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("run")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":run").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(result.getOutput()).contains("Hello, Incremental Default Method!");
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        assertThat(report).contains("\"incremental\": true");
+        assertThat(otherClassFile.lastModified()).isEqualTo(0);
+    }
+
+    @Test
+    public void assembleIncrementalDefaultMethodsWithChangedResource() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    defaultMethods true\n" +
+                "}\n" +
+                "\n" +
+                // Like the service files annotation processors write to the javac output.
+                "compileJava.doLast {\n" +
+                "    File service = new File(destinationDir, 'META-INF/services/test.Service')\n" +
+                "    service.parentFile.mkdirs()\n" +
+                "    service.text = file('service.txt').text\n" +
+                "}");
+
+        File serviceFile = new File(rootDir, "service.txt");
+        writeFile(serviceFile, "test.ServiceImpl");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        writeFile(serviceFile, "test.OtherServiceImpl");
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Incremental Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        // The changed resource is copied over instead of being read as a class.
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        File service = findFile(new File(rootDir, "build/classes"), "test.Service");
+        assertThat(FileUtils.readFileToString(service, "UTF-8")).isEqualTo("test.OtherServiceImpl");
+    }
+
+    @Test
+    public void assembleFullRunRemovesDeletedResource() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    incremental false\n" +
+                "}\n" +
+                "\n" +
+                "compileJava.doLast {\n" +
+                "    File service = new File(destinationDir, 'META-INF/services/test.Service')\n" +
+                "    if (file('service.txt').exists()) {\n" +
+                "        service.parentFile.mkdirs()\n" +
+                "        service.text = file('service.txt').text\n" +
+                "    } else {\n" +
+                "        service.delete()\n" +
+                "    }\n" +
+                "}");
+
+        File serviceFile = new File(rootDir, "service.txt");
+        writeFile(serviceFile, "test.ServiceImpl");
+
+        File javaFile = new File(rootDir, "src/main/java/Main.java");
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(findFile(new File(rootDir, "build/classes"), "test.Service")).isNotNull();
+
+        //noinspection ResultOfMethodCallIgnored
+        serviceFile.delete();
+        writeFile(javaFile, "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Again!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        // The resource was listed as an output of the previous run, so the full run removes it.
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(findFile(new File(rootDir, "build/classes"), "test.Service")).isNull();
+    }
+
+    @Test
+    public void rerunOnlyTouchesChangedOutputs() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}");
+
+        writeFile(new File(rootDir, "src/main/java/Main.java"), "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        File otherFile = new File(rootDir, "src/main/java/other/Other.java");
+        writeFile(otherFile, "package other;\n" +
+                "\n" +
+                "public class Other {\n" +
+                "    Runnable lambda = () -> System.out.println(\"Hello, Other!\");\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        File classesDir = new File(rootDir, "build/classes");
+        File mainClassFile = findFile(classesDir, "Main.class");
+        assertThat(findFile(classesDir, "Other$$Lambda$1.class")).exists();
+        // Make sure a rewrite would be seen.
+        assertThat(mainClassFile.setLastModified(0)).isTrue();
+
+        assertThat(otherFile.delete()).isTrue();
+
+        errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--rerun-tasks", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(mainClassFile.lastModified()).isEqualTo(0);
+        assertThat(findFile(classesDir, "Other.class")).isNull();
+        assertThat(findFile(classesDir, "Other$$Lambda$1.class")).isNull();
+        assertThat(new File(mainClassFile.getParentFile(), "other")).doesNotExist();
+    }
+
+    @Test
+    public void dependencyMethodBodyChangeIsUpToDate() throws Exception {
+        // @CompileClasspath, which ignores what doesn't change the abi, was added in gradle 4.3.
+        assumeTrue(GradleVersion.version(gradleVersion).compareTo(GradleVersion.version("4.3")) >= 0);
+
+        writeFile(new File(rootDir, "settings.gradle"), "include ':lib'");
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "dependencies {\n" +
+                "    compile project(':lib')\n" +
+                "}");
+        writeFile(new File(rootDir, "lib/build.gradle"), "apply plugin: 'java'");
+
+        File libFile = new File(rootDir, "lib/src/main/java/lib/Greeting.java");
+        writeFile(libFile, "package lib;\n" +
+                "\n" +
+                "public class Greeting {\n" +
+                "    public static String get() {\n" +
+                "        return \"Hello, Lambda!\";\n" +
+                "    }\n" +
+                "}");
+
+        writeFile(new File(rootDir, "src/main/java/Main.java"), "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(lib.Greeting.get());\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        writeFile(libFile, "package lib;\n" +
+                "\n" +
+                "public class Greeting {\n" +
+                "    public static String get() {\n" +
+                "        return \"Hello, Other Lambda!\";\n" +
+                "    }\n" +
+                "}");
+
+        errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        // The dependency was rebuilt, but its abi is the same so retrolambda doesn't run again.
+        assertThat(result.task(":lib:compileJava").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.UP_TO_DATE);
+    }
+
+    @Test
+    public void assembleTryWithResources() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}");
+
+        // No lambdas, but try-with-resources calls Throwable.addSuppressed which java 6 doesn't have.
+        writeFile(new File(rootDir, "src/main/java/Main.java"), "import java.io.StringReader;\n" +
+                "public class Main {\n" +
+                "    public static void main(String[] args) throws Exception {\n" +
+                "        try (StringReader reader = new StringReader(\"Hello\")) {\n" +
+                "            reader.read();\n" +
+                "        }\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(result.task(":assemble").getOutcome()).isEqualTo(TaskOutcome.SUCCESS);
+
+        File mainClassFile = findFile(new File(rootDir, "build/classes"), "Main.class");
+        assertThat(mainClassFile).exists();
+        assertThat(FileUtils.readFileToString(mainClassFile, "ISO-8859-1")).doesNotContain("addSuppressed");
+    }
+
+    @Test
+    public void assembleWithClassCacheKeepsResources() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}\n" +
+                "\n" +
+                "retrolambda {\n" +
+                "    classCache true\n" +
+                "    defaultMethods true\n" +
+                "}\n" +
+                "\n" +
+                // Like the service files annotation processors write to the javac output.
+                "compileJava.doLast {\n" +
+                "    File service = new File(destinationDir, 'META-INF/services/test.Service')\n" +
+                "    service.parentFile.mkdirs()\n" +
+                "    service.text = 'test.ServiceImpl'\n" +
+                "}");
+
+        writeFile(new File(rootDir, "src/main/java/Main.java"), "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        assertThat(findFile(new File(rootDir, "build/classes"), "test.Service")).exists();
+
+        // And again with every class restored from the cache.
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("clean", "assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        assertThat(report).contains("\"cacheMisses\": 0");
+        assertThat(findFile(new File(rootDir, "build/classes"), "test.Service")).exists();
+    }
+
+    @Test
+    public void writesPerformanceReport() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}");
+
+        writeFile(new File(rootDir, "src/main/java/Main.java"), "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        File reportFile = new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json");
+        assertThat(reportFile).exists();
+        String report = FileUtils.readFileToString(reportFile, "UTF-8");
+        assertThat(report).contains("\"name\": \":compileRetrolambdaMain\"");
+        assertThat(report).contains("\"classesRewritten\": 1");
+        assertThat(report).contains("\"lambdaClasses\": 1");
+
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        // Only the tasks that ran in the last build have a report.
+        assertThat(result.task(":compileRetrolambdaMain").getOutcome()).isEqualTo(TaskOutcome.UP_TO_DATE);
+        assertThat(reportFile).doesNotExist();
+    }
+
+    @Test
+    public void recordsForkHeap() throws Exception {
+        writeFile(buildFile, "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "apply plugin: 'java'\n" +
+                "apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "repositories {\n" +
+                "    mavenCentral()\n" +
+                "}");
+
+        writeFile(new File(rootDir, "src/main/java/Main.java"), "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        Runnable lambda = () -> System.out.println(\"Hello, Lambda!\");\n" +
+                "        lambda.run();\n" +
+                "    }\n" +
+                "}");
+
+        StringWriter errorOutput = new StringWriter();
+        GradleRunner.create()
+                .withGradleVersion(gradleVersion)
+                .withProjectDir(rootDir)
+                .withArguments("assemble", "--stacktrace")
+                .forwardStdError(errorOutput)
+                .build();
+
+        String report = FileUtils.readFileToString(new File(rootDir, "build/reports/retrolambda/compileRetrolambdaMain.json"), "UTF-8");
+        assertThat(report).contains("\"forks\": 1");
+        assertThat(report).contains("\"forkPeakHeapBytes\"");
+        // The next fork is sized from it.
+        assertThat(new File(rootDir, "build/tmp/compileRetrolambdaMain/heap.properties")).exists();
     }
 }
@@ -0,0 +1,81 @@
+package me.tatarka;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static me.tatarka.TestHelpers.writeFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LambdaIndexTest {
+    @Rule
+    public final TemporaryFolder tempDir = new TemporaryFolder();
+    private File inputDir;
+    private File outputDir;
+
+    @Before
+    public void setup() throws Exception {
+        inputDir = tempDir.newFolder("input");
+        outputDir = tempDir.newFolder("output");
+    }
+
+    @Test
+    public void findsLambdasAndCompanion() throws Exception {
+        File main = newOutput("test/Main.class");
+        File lambda = newOutput("test/Main$$Lambda$1.class");
+        File companion = newOutput("test/Main$.class");
+
+        Map<File, List<File>> generated = LambdaIndex.generatedBy(outputDir, Collections.singletonList(inputDir), Collections.singletonList(main));
+
+        assertThat(generated.get(main)).containsOnly(lambda, companion);
+    }
+
+    @Test
+    public void inputClassEndingWithDollarIsNotCompanion() throws Exception {
+        writeFile(new File(inputDir, "test/Main.class"), "");
+        writeFile(new File(inputDir, "test/Main$.class"), "");
+        File main = newOutput("test/Main.class");
+        File lambda = newOutput("test/Main$$Lambda$1.class");
+        newOutput("test/Main$.class");
+
+        Map<File, List<File>> generated = LambdaIndex.generatedBy(outputDir, Collections.singletonList(inputDir), Collections.singletonList(main));
+
+        assertThat(generated.get(main)).containsOnly(lambda);
+    }
+
+    @Test
+    public void listsResourcesWithoutGenerated() throws Exception {
+        File main = newOutput("test/Main.class");
+        File resource = newOutput("test/x");
+        File lambda = newOutput("test/Main$$Lambda$1.class");
+        LambdaIndex index = new LambdaIndex(outputDir, Collections.singletonList(inputDir));
+
+        index.update(Arrays.asList(main, resource));
+
+        assertThat(LambdaIndex.generatedBy(outputDir, Collections.singletonList(inputDir), Collections.singletonList(resource))).isEmpty();
+        assertThat(index.files()).containsOnly(main, lambda, resource);
+    }
+
+    @Test
+    public void loadWithoutIndexIsEmpty() throws Exception {
+        // Like the output of another task in the same dir.
+        newOutput("test/Other.class");
+
+        LambdaIndex index = LambdaIndex.load(new File(tempDir.getRoot(), "lambdas.index"), outputDir, Collections.singletonList(inputDir));
+
+        assertThat(index.files()).isEmpty();
+    }
+
+    private File newOutput(String path) throws Exception {
+        File file = new File(outputDir, path);
+        writeFile(file, "");
+        return file;
+    }
+}
@@ -0,0 +1,200 @@
+package me.tatarka;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static me.tatarka.TestHelpers.newestSupportedGradleVersion;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures builds of a large {@link SyntheticProject} and compares them against the baselines in
+ * {@code src/test/performance/baselines.properties}. This is slow, so it isn't part of {@code test}
+ * and is run with {@code performanceTest} instead. Passing {@code -PupdateBaselines} records the
+ * measurements as the new baselines instead of comparing against them.
+ * <p>
+ * A scenario's time is the median of its runs. It fails when that is more than the tolerance over
+ * its baseline, or when it forks retrolambda more often than its baseline. Scenarios without a
+ * baseline are only reported.
+ */
+@RunWith(JUnit4.class)
+public class PerformanceTest {
+    private static final Pattern FORKS = Pattern.compile("\"forks\": (\\d+)");
+
+    @Rule
+    public final TemporaryFolder testProjectDir = new TemporaryFolder();
+
+    private final String gradleVersion = newestSupportedGradleVersion()[0];
+    private final int iterations = Integer.getInteger("performance.iterations", 5);
+    private final int warmups = Integer.getInteger("performance.warmups", 2);
+    private final double tolerance = Double.parseDouble(System.getProperty("performance.tolerance", "0.25"));
+    private final File baselinesFile = new File(System.getProperty("performance.baselines", "src/test/performance/baselines.properties"));
+    private final boolean updateBaselines = Boolean.getBoolean("performance.updateBaselines");
+
+    private File rootDir;
+    private SyntheticProject project;
+
+    @Before
+    public void setup() throws Exception {
+        rootDir = testProjectDir.getRoot();
+        project = new SyntheticProject(rootDir,
+                Integer.getInteger("performance.modules", 4),
+                Integer.getInteger("performance.classesPerModule", 500));
+        project.write();
+    }
+
+    @Test
+    public void builds() throws Exception {
+        List<Result> results = new ArrayList<>();
+        results.add(measure("clean", new Scenario() {
+            @Override
+            public void prepare() throws IOException {
+                FileUtils.deleteDirectory(new File(rootDir, "build"));
+                for (int module = 0; module < project.getModules(); module++) {
+                    FileUtils.deleteDirectory(new File(rootDir, "module" + module + "/build"));
+                }
+            }
+        }));
+        results.add(measure("noop", new Scenario() {
+            @Override
+            public void prepare() {
+            }
+        }));
+        results.add(measure("abiChange", new Scenario() {
+            @Override
+            public void prepare() throws IOException {
+                project.abiChange();
+            }
+        }));
+        results.add(measure("nonAbiChange", new Scenario() {
+            @Override
+            public void prepare() throws IOException {
+                project.nonAbiChange();
+            }
+        }));
+
+        Properties baselines = new Properties();
+        if (baselinesFile.exists()) {
+            InputStream in = new FileInputStream(baselinesFile);
+            try {
+                baselines.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        List<String> regressions = new ArrayList<>();
+        for (Result result : results) {
+            System.out.println(result);
+            if (updateBaselines) {
+                baselines.setProperty(result.name + ".ms", String.valueOf(result.millis));
+                baselines.setProperty(result.name + ".forks", String.valueOf(result.forks));
+                continue;
+            }
+            String millis = baselines.getProperty(result.name + ".ms");
+            if (millis != null && result.millis > Long.parseLong(millis) * (1 + tolerance)) {
+                regressions.add(result.name + " took " + result.millis + "ms, baseline is " + millis + "ms");
+            }
+            String forks = baselines.getProperty(result.name + ".forks");
+            if (forks != null && result.forks > Integer.parseInt(forks)) {
+                regressions.add(result.name + " forked retrolambda " + result.forks + " times, baseline is " + forks);
+            }
+        }
+
+        if (updateBaselines) {
+            OutputStream out = new FileOutputStream(baselinesFile);
+            try {
+                baselines.store(out, "Baselines for PerformanceTest, recorded with -PupdateBaselines");
+            } finally {
+                out.close();
+            }
+        }
+        assertThat(regressions).isEmpty();
+    }
+
+    private Result measure(String name, Scenario scenario) throws Exception {
+        List<Long> times = new ArrayList<>();
+        int forks = 0;
+        for (int i = 0; i < warmups + iterations; i++) {
+            scenario.prepare();
+            long start = System.nanoTime();
+            StringWriter errorOutput = new StringWriter();
+            GradleRunner.create()
+                    .withGradleVersion(gradleVersion)
+                    .withProjectDir(rootDir)
+                    .withArguments("assemble", "--stacktrace")
+                    .forwardStdError(errorOutput)
+                    .build();
+            long millis = (System.nanoTime() - start) / 1000000;
+            if (i >= warmups) {
+                times.add(millis);
+                forks = Math.max(forks, countForks());
+            }
+        }
+        Collections.sort(times);
+        return new Result(name, times.get(times.size() / 2), forks);
+    }
+
+    /**
+     * The number of times retrolambda was forked in the last build, from the reports of each module.
+     */
+    private int countForks() throws IOException {
+        int forks = 0;
+        for (int module = 0; module < project.getModules(); module++) {
+            File[] reports = new File(rootDir, "module" + module + "/build/reports/retrolambda").listFiles();
+            if (reports == null) {
+                continue;
+            }
+            for (File report : reports) {
+                Matcher matcher = FORKS.matcher(FileUtils.readFileToString(report, "UTF-8"));
+                while (matcher.find()) {
+                    forks += Integer.parseInt(matcher.group(1));
+                }
+            }
+        }
+        return forks;
+    }
+
+    private interface Scenario {
+        /**
+         * Called before each build of the scenario.
+         */
+        void prepare() throws IOException;
+    }
+
+    private static class Result {
+        final String name;
+        final long millis;
+        final int forks;
+
+        Result(String name, long millis, int forks) {
+            this.name = name;
+            this.millis = millis;
+            this.forks = forks;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + millis + "ms, " + forks + " forks";
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package me.tatarka;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static me.tatarka.TestHelpers.writeFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetrolambdaClassCacheTest {
+    @Rule
+    public final TemporaryFolder tempDir = new TemporaryFolder();
+    private File cacheDir;
+    private File outputDir;
+
+    @Before
+    public void setup() throws Exception {
+        cacheDir = tempDir.newFolder("cache");
+        outputDir = tempDir.newFolder("output");
+    }
+
+    @Test
+    public void missThenHit() throws Exception {
+        RetrolambdaClassCache cache = new RetrolambdaClassCache(cacheDir, Long.MAX_VALUE, "context");
+        File classFile = newFile("Main.class", "main");
+        File lambdaFile = newFile("Main$$Lambda$1.class", "lambda");
+        String key = cache.key(classFile);
+
+        assertThat(cache.restore(key, outputDir)).isFalse();
+
+        cache.store(key, list(classFile, lambdaFile));
+
+        assertThat(cache.restore(key, outputDir)).isTrue();
+        assertThat(FileUtils.readFileToString(new File(outputDir, "Main.class"), "UTF-8")).isEqualTo("main");
+        assertThat(FileUtils.readFileToString(new File(outputDir, "Main$$Lambda$1.class"), "UTF-8")).isEqualTo("lambda");
+    }
+
+    @Test
+    public void keysDependOnContext() throws Exception {
+        File classFile = newFile("Main.class", "main");
+        String key = new RetrolambdaClassCache(cacheDir, Long.MAX_VALUE, "context").key(classFile);
+        String otherKey = new RetrolambdaClassCache(cacheDir, Long.MAX_VALUE, "other").key(classFile);
+
+        assertThat(key).isNotEqualTo(otherKey);
+    }
+
+    @Test
+    public void writingRestoredFileDoesNotChangeCache() throws Exception {
+        RetrolambdaClassCache cache = new RetrolambdaClassCache(cacheDir, Long.MAX_VALUE, "context");
+        File classFile = newFile("Main.class", "main");
+        String key = cache.key(classFile);
+        cache.store(key, list(classFile));
+        assertThat(cache.restore(key, outputDir)).isTrue();
+
+        // A task after this one writing to its input in place.
+        FileOutputStream out = new FileOutputStream(new File(outputDir, "Main.class"));
+        try {
+            out.write("changed".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        File otherDir = tempDir.newFolder("other");
+        assertThat(cache.restore(key, otherDir)).isTrue();
+        assertThat(FileUtils.readFileToString(new File(otherDir, "Main.class"), "UTF-8")).isEqualTo("main");
+    }
+
+    @Test
+    public void concurrentStoresOfSameKey() throws Exception {
+        final RetrolambdaClassCache cache = new RetrolambdaClassCache(cacheDir, Long.MAX_VALUE, "context");
+        final List<File> classFiles = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            classFiles.add(newFile("Main" + i + ".class", "main" + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (File classFile : classFiles) {
+                            cache.store(cache.key(classFile), list(classFile));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                // Losing the race to store an entry must not fail.
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (File classFile : classFiles) {
+            assertThat(cache.restore(cache.key(classFile), outputDir)).isTrue();
+        }
+    }
+
+    @Test
+    public void cleanupEvictsLeastRecentlyUsed() throws Exception {
+        RetrolambdaClassCache cache = new RetrolambdaClassCache(cacheDir, 2500, "context");
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            File classFile = newFile("Main" + i + ".class", repeat('a' + i, 1000));
+            keys[i] = cache.key(classFile);
+            cache.store(keys[i], list(classFile));
+            // Oldest first.
+            assertThat(entryDir(keys[i]).setLastModified(System.currentTimeMillis() - (keys.length - i) * 60 * 1000)).isTrue();
+        }
+
+        cache.cleanup();
+
+        assertThat(cache.restore(keys[0], outputDir)).isFalse();
+        assertThat(cache.restore(keys[1], outputDir)).isTrue();
+        assertThat(cache.restore(keys[2], outputDir)).isTrue();
+    }
+
+    private File newFile(String name, String contents) throws Exception {
+        File file = new File(tempDir.getRoot(), "input/" + name);
+        writeFile(file, contents);
+        return file;
+    }
+
+    private File entryDir(String key) {
+        return new File(cacheDir, "v1/" + key.substring(0, 2) + "/" + key);
+    }
+
+    private static List<File> list(File... files) {
+        List<File> list = new ArrayList<>();
+        Collections.addAll(list, files);
+        return list;
+    }
+
+    private static String repeat(int c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append((char) c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,238 @@
+package me.tatarka;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.logging.Logging;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class RetrolambdaDaemonTest {
+    private static final Pattern LISTENING = Pattern.compile("listening on port");
+
+    @Rule
+    public final TemporaryFolder tempDir = new TemporaryFolder();
+    private final List<Process> processes = new ArrayList<>();
+    private File daemonsDir;
+    private File inputDir;
+    private String java;
+    private List<File> retrolambdaClasspath;
+    private RetrolambdaDaemonClient client;
+
+    @Before
+    public void setup() throws Exception {
+        daemonsDir = tempDir.newFolder("daemons");
+        inputDir = tempDir.newFolder("input");
+        java = new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+        retrolambdaClasspath = Collections.singletonList(new File(Class.forName("net.orfjackal.retrolambda.Retrolambda")
+                .getProtectionDomain().getCodeSource().getLocation().toURI()));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        // Daemons started by a client stop when they are idle, the ones started here are stopped now.
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void secondRunReusesDaemon() throws Exception {
+        client = client(10 * 1000);
+
+        client.run(properties());
+        Properties registry = registry();
+        client.run(properties());
+
+        assertThat(registry()).isEqualTo(registry);
+        assertThat(daemonsStarted()).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentRunsStartOneDaemon() throws Exception {
+        client = client(10 * 1000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return client.run(properties());
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(daemonsStarted()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectsBadToken() throws Exception {
+        client = client(10 * 1000);
+        client.run(properties());
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(registry().getProperty(RetrolambdaDaemon.PROPERTY_PORT)));
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF("bad");
+            out.flush();
+            try {
+                new DataInputStream(socket.getInputStream()).readInt();
+                fail("Expected the daemon to close the connection");
+            } catch (EOFException e) {
+                // Closed without a response.
+            }
+        } finally {
+            socket.close();
+        }
+
+        // And it still serves requests with the right token.
+        client.run(properties());
+        assertThat(daemonsStarted()).isEqualTo(1);
+    }
+
+    @Test
+    public void startsNewDaemonWhenRegisteredOneIsGone() throws Exception {
+        client = client(10 * 1000);
+        client.run(properties());
+        File registryFile = client.registryFile();
+        // A daemon that died without removing itself from the registry.
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int deadPort = server.getLocalPort();
+        server.close();
+        Properties registry = registry();
+        registry.setProperty(RetrolambdaDaemon.PROPERTY_PORT, String.valueOf(deadPort));
+        OutputStream out = new FileOutputStream(registryFile);
+        try {
+            registry.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        client.run(properties());
+
+        assertThat(registry().getProperty(RetrolambdaDaemon.PROPERTY_PORT)).isNotEqualTo(String.valueOf(deadPort));
+        assertThat(daemonsStarted()).isEqualTo(2);
+    }
+
+    @Test
+    public void stopsWhenIdle() throws Exception {
+        client = client(1000);
+
+        client.run(properties());
+
+        waitForStop();
+        assertThat(FileUtils.readFileToString(logFile(), "UTF-8")).contains("idle for 1000ms, stopping");
+    }
+
+    @Test
+    public void stopsWhenOverMemoryLimit() throws Exception {
+        client = client(10 * 1000);
+        // Started the way the client does, but with a limit that is always exceeded.
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(retrolambdaClasspath.get(0).getAbsolutePath() + File.pathSeparator
+                + new File(RetrolambdaDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath());
+        command.add(RetrolambdaDaemon.class.getName());
+        command.add(client.registryFile().getAbsolutePath());
+        command.add(String.valueOf(10 * 1000));
+        command.add("0");
+        processes.add(new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile()))
+                .start());
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (!client.registryFile().exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        client.run(properties());
+
+        waitForStop();
+        assertThat(FileUtils.readFileToString(logFile(), "UTF-8")).contains("heap over 0% of max, stopping");
+    }
+
+    private RetrolambdaDaemonClient client(long idleTimeoutMillis) {
+        return new RetrolambdaDaemonClient(daemonsDir, java, retrolambdaClasspath, Collections.<String>emptyList(),
+                idleTimeoutMillis, "256m", Logging.getLogger(RetrolambdaDaemonTest.class));
+    }
+
+    private Properties properties() {
+        Properties properties = new Properties();
+        properties.setProperty("retrolambda.inputDir", inputDir.getAbsolutePath());
+        properties.setProperty("retrolambda.classpath", inputDir.getAbsolutePath());
+        return properties;
+    }
+
+    private File logFile() {
+        return new File(daemonsDir, client.registryFile().getName().replaceFirst("\\.properties$", ".log"));
+    }
+
+    private Properties registry() throws Exception {
+        Properties registry = new Properties();
+        InputStream in = new FileInputStream(client.registryFile());
+        try {
+            registry.load(in);
+        } finally {
+            in.close();
+        }
+        return registry;
+    }
+
+    private int daemonsStarted() throws Exception {
+        Matcher matcher = LISTENING.matcher(FileUtils.readFileToString(logFile(), "UTF-8"));
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * A daemon removes itself from the registry when it stops.
+     */
+    private void waitForStop() throws Exception {
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (client.registryFile().exists()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the daemon to stop");
+            }
+            Thread.sleep(50);
+        }
+    }
+}
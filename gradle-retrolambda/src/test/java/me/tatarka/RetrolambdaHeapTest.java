@@ -0,0 +1,46 @@
+package me.tatarka;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetrolambdaHeapTest {
+    @Rule
+    public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void retriesWithLargerHeap() throws Exception {
+        File heapFile = new File(tempDir.getRoot(), "heap.properties");
+        File inputDir = tempDir.newFolder("input");
+        List<String> jvmArgs = Collections.emptyList();
+        // A tiny recorded peak, so the estimate is the minimum.
+        RetrolambdaHeap.record(heapFile, inputDir, 1, 1);
+        List<String> heapArgs = RetrolambdaHeap.jvmArgs(jvmArgs, heapFile, inputDir, 1, Collections.<File>emptyList());
+
+        List<String> retryArgs = RetrolambdaHeap.retryJvmArgs(jvmArgs, heapArgs);
+
+        assertThat(heapArgs).containsExactly("-Xmx64m", "-XX:+UseSerialGC");
+        assertThat(retryArgs).hasSize(2);
+        assertThat(heapMegabytes(retryArgs.get(0))).isGreaterThan(64);
+    }
+
+    @Test
+    public void doesNotRetryWithHeapFromJvmArgs() throws Exception {
+        List<String> jvmArgs = Arrays.asList("-Xmx128m");
+        List<String> heapArgs = RetrolambdaHeap.jvmArgs(jvmArgs, null, tempDir.getRoot(), 1, Collections.<File>emptyList());
+
+        assertThat(heapArgs).containsExactly("-XX:+UseSerialGC");
+        assertThat(RetrolambdaHeap.retryJvmArgs(jvmArgs, heapArgs)).isNull();
+    }
+
+    private static long heapMegabytes(String arg) {
+        return Long.parseLong(arg.substring("-Xmx".length(), arg.length() - 1));
+    }
+}
@@ -0,0 +1,136 @@
+package me.tatarka;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static me.tatarka.TestHelpers.writeFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetrolambdaJarTest {
+    @Rule
+    public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void onlyExtractsClassesThatNeedBackport() throws Exception {
+        File inputJar = inputJar();
+        RetrolambdaJar jar = new RetrolambdaJar(inputJar, tempDir.newFile("output.jar"), new File(tempDir.getRoot(), "work"), 50);
+
+        List<File> inputDirs = jar.extract(1, false);
+
+        assertThat(inputDirs).hasSize(1);
+        assertThat(new File(inputDirs.get(0), "test/Main.class")).exists();
+        assertThat(new File(inputDirs.get(0), "test/Old.class")).doesNotExist();
+    }
+
+    @Test
+    public void splitKeepsPackagesTogether() throws Exception {
+        // Enough classes in each package for a shard of its own.
+        int perPackage = 500;
+        File inputJar = tempDir.newFile("input.jar");
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(inputJar));
+        try {
+            for (int i = 0; i < perPackage; i++) {
+                // Interleaved, so splitting in entry order would mix the packages.
+                putEntry(output, "a/A" + i + ".class", classBytes(52));
+                putEntry(output, "b/B" + i + ".class", classBytes(52));
+            }
+        } finally {
+            output.close();
+        }
+        File outputJar = new File(tempDir.getRoot(), "output.jar");
+        RetrolambdaJar jar = new RetrolambdaJar(inputJar, outputJar, new File(tempDir.getRoot(), "work"), 50);
+
+        List<File> inputDirs = jar.extract(2, false);
+
+        assertThat(inputDirs).hasSize(2);
+        assertThat(new File(inputDirs.get(0), "a/A0.class")).exists();
+        assertThat(new File(inputDirs.get(0), "b/B0.class")).doesNotExist();
+        assertThat(new File(inputDirs.get(1), "b/B0.class")).exists();
+        assertThat(new File(inputDirs.get(1), "a/A0.class")).doesNotExist();
+
+        for (File inputDir : inputDirs) {
+            FileUtils.copyDirectory(inputDir, RetrolambdaJar.outputDirFor(inputDir));
+        }
+        jar.write();
+        assertThat(entryNames(outputJar)).hasSize(2 * perPackage);
+    }
+
+    @Test
+    public void writeIsReproducible() throws Exception {
+        File inputJar = inputJar();
+        File first = runJar(inputJar, "first", new String[]{"test/Main$$Lambda$2.class", "test/Main$$Lambda$1.class"});
+        Thread.sleep(2000);
+        File second = runJar(inputJar, "second", new String[]{"test/Main$$Lambda$1.class", "test/Main$$Lambda$2.class"});
+
+        assertThat(entryNames(first)).containsExactly(
+                "test/Main.class", "test/Old.class", "res.txt", "test/Main$$Lambda$1.class", "test/Main$$Lambda$2.class");
+        assertThat(FileUtils.contentEquals(first, second)).isTrue();
+    }
+
+    /**
+     * Runs the jar, with the given lambda classes created in order as if retrolambda generated them.
+     */
+    private File runJar(File inputJar, String name, String[] lambdas) throws Exception {
+        File outputJar = new File(tempDir.getRoot(), name + ".jar");
+        RetrolambdaJar jar = new RetrolambdaJar(inputJar, outputJar, new File(tempDir.getRoot(), name), 50);
+        for (File inputDir : jar.extract(1, false)) {
+            File outputDir = RetrolambdaJar.outputDirFor(inputDir);
+            FileUtils.copyDirectory(inputDir, outputDir);
+            for (String lambda : lambdas) {
+                writeFile(new File(outputDir, lambda), lambda);
+            }
+        }
+        jar.write();
+        return outputJar;
+    }
+
+    private File inputJar() throws Exception {
+        File inputJar = tempDir.newFile("input.jar");
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(inputJar));
+        try {
+            putEntry(output, "test/Main.class", classBytes(52));
+            putEntry(output, "test/Old.class", classBytes(50));
+            putEntry(output, "res.txt", "res".getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+        return inputJar;
+    }
+
+    private static void putEntry(ZipOutputStream output, String name, byte[] bytes) throws Exception {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(0);
+        output.putNextEntry(entry);
+        output.write(bytes);
+        output.closeEntry();
+    }
+
+    private static byte[] classBytes(int majorVersion) {
+        return new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, (byte) majorVersion, 1, 2, 3};
+    }
+
+    private static List<String> entryNames(File jar) throws Exception {
+        List<String> names = new ArrayList<>();
+        ZipInputStream input = new ZipInputStream(new FileInputStream(jar));
+        try {
+            ZipEntry entry;
+            while ((entry = input.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        } finally {
+            input.close();
+        }
+        return names;
+    }
+}
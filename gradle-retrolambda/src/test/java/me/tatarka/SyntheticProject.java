@@ -0,0 +1,168 @@
+package me.tatarka;
+
+import java.io.File;
+import java.io.IOException;
+
+import static me.tatarka.TestHelpers.getPluginClasspath;
+import static me.tatarka.TestHelpers.writeFile;
+
+/**
+ * Generates a multi-module java project to measure the plugin against. Each module depends on the
+ * one before it and has packages of classes with lambdas and method references, implementing
+ * interfaces with default methods. Every module has an {@code Entry} class that calls into the
+ * module before it, which is what is changed between builds.
+ */
+public class SyntheticProject {
+    private static final int CLASSES_PER_PACKAGE = 100;
+    private static final int INTERFACE_EVERY = 10;
+
+    private final File rootDir;
+    private final int modules;
+    private final int classesPerModule;
+    private int nonAbiChanges;
+    private int abiChanges;
+
+    public SyntheticProject(File rootDir, int modules, int classesPerModule) {
+        this.rootDir = rootDir;
+        this.modules = modules;
+        this.classesPerModule = classesPerModule;
+    }
+
+    public int getModules() {
+        return modules;
+    }
+
+    public void write() throws IOException {
+        StringBuilder settings = new StringBuilder();
+        for (int module = 0; module < modules; module++) {
+            settings.append("include ':").append(moduleName(module)).append("'\n");
+        }
+        writeFile(new File(rootDir, "settings.gradle"), settings.toString());
+
+        writeFile(new File(rootDir, "build.gradle"), "buildscript {\n" +
+                "    dependencies {\n" +
+                "        classpath files(" + getPluginClasspath() + ")\n" +
+                "    }\n" +
+                "}\n" +
+                "\n" +
+                "subprojects {\n" +
+                "    apply plugin: 'java'\n" +
+                "    apply plugin: 'me.tatarka.retrolambda'\n" +
+                "\n" +
+                "    repositories {\n" +
+                "        mavenCentral()\n" +
+                "    }\n" +
+                "\n" +
+                "    retrolambda {\n" +
+                "        defaultMethods true\n" +
+                "    }\n" +
+                "}");
+
+        for (int module = 0; module < modules; module++) {
+            File moduleDir = new File(rootDir, moduleName(module));
+            writeFile(new File(moduleDir, "build.gradle"), module == 0 ? "" : "dependencies {\n" +
+                    "    compile project(':" + moduleName(module - 1) + "')\n" +
+                    "}");
+            for (int i = 0; i < classesPerModule; i++) {
+                String pkg = packageName(module, i);
+                File dir = new File(moduleDir, "src/main/java/" + pkg.replace('.', '/'));
+                if (i % INTERFACE_EVERY == 0) {
+                    writeFile(new File(dir, "Api" + i + ".java"), interfaceSource(pkg, i));
+                } else {
+                    writeFile(new File(dir, "Impl" + i + ".java"), classSource(pkg, i));
+                }
+            }
+            writeEntry(module);
+        }
+    }
+
+    /**
+     * Changes the body of the first module's entry point without changing its abi.
+     */
+    public void nonAbiChange() throws IOException {
+        nonAbiChanges++;
+        writeEntry(0);
+    }
+
+    /**
+     * Adds a public method to the first module's entry point, changing its abi.
+     */
+    public void abiChange() throws IOException {
+        abiChanges++;
+        writeEntry(0);
+    }
+
+    private void writeEntry(int module) throws IOException {
+        String pkg = "m" + module;
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(pkg).append(";\n")
+                .append("\n")
+                .append("import java.util.concurrent.Callable;\n")
+                .append("\n")
+                .append("public class Entry {\n")
+                .append("    public static String run() throws Exception {\n")
+                .append("        Callable<String> previous = ");
+        if (module == 0) {
+            source.append("() -> \"").append(nonAbiChanges).append("\";\n");
+        } else {
+            source.append("m").append(module - 1).append(".Entry::run;\n");
+        }
+        source.append("        return previous.call() + new ").append(packageName(module, 1)).append(".Impl1().describe();\n")
+                .append("    }\n");
+        for (int i = 1; module == 0 && i <= abiChanges; i++) {
+            source.append("\n")
+                    .append("    public static int abiChange").append(i).append("() {\n")
+                    .append("        return ").append(i).append(";\n")
+                    .append("    }\n");
+        }
+        source.append("}\n");
+        writeFile(new File(rootDir, moduleName(module) + "/src/main/java/" + pkg + "/Entry.java"), source.toString());
+    }
+
+    private static String interfaceSource(String pkg, int i) {
+        return "package " + pkg + ";\n" +
+                "\n" +
+                "public interface Api" + i + " {\n" +
+                "    int value();\n" +
+                "\n" +
+                "    default String describe() {\n" +
+                "        return \"Api" + i + ":\" + value();\n" +
+                "    }\n" +
+                "}\n";
+    }
+
+    private static String classSource(String pkg, int i) {
+        int api = i - i % INTERFACE_EVERY;
+        return "package " + pkg + ";\n" +
+                "\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.List;\n" +
+                "import java.util.concurrent.Callable;\n" +
+                "\n" +
+                "public class Impl" + i + " implements Api" + api + " {\n" +
+                "    @Override\n" +
+                "    public int value() {\n" +
+                "        return " + i + ";\n" +
+                "    }\n" +
+                "\n" +
+                "    public List<String> names(List<Integer> values) throws Exception {\n" +
+                "        List<String> names = new ArrayList<>();\n" +
+                "        Callable<String> describe = this::describe;\n" +
+                "        for (Integer value : values) {\n" +
+                "            Runnable add = () -> names.add(\"Impl" + i + ":\" + value);\n" +
+                "            add.run();\n" +
+                "        }\n" +
+                "        names.add(describe.call());\n" +
+                "        return names;\n" +
+                "    }\n" +
+                "}\n";
+    }
+
+    private static String moduleName(int module) {
+        return "module" + module;
+    }
+
+    private static String packageName(int module, int i) {
+        return "m" + module + ".p" + (i / CLASSES_PER_PACKAGE);
+    }
+}